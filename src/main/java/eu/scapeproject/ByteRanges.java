@@ -0,0 +1,149 @@
+package eu.scapeproject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+/**
+ * Answers requests for stored content with the whole content or the byte
+ * ranges requested via the Range header. Lengths are kept as longs
+ * throughout, so content larger than 2 GiB gets a correct Content-Length
+ *
+ */
+final class ByteRanges {
+
+    private static final Pattern BYTE_RANGE = Pattern.compile("(\\d*)-(\\d*)");
+    private static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * Streams a channel to the client. Byte ranges requested via the Range
+     * header are answered with 206, a single range as it is and several ranges
+     * as multipart/byteranges. Only the requested parts are read from the
+     * channel. An If-Range header not matching the given ETag gets the whole
+     * content, so a resumed download never mixes two versions
+     */
+    static void send(FileChannel channel, String contentType, String etag, Request req, Response resp) throws IOException {
+        long length = channel.size();
+        resp.set("Accept-Ranges", "bytes");
+        String ifRange = req.getValue("If-Range");
+        List<long[]> ranges = (ifRange == null || ifRange.equals(etag)) ? parse(req.getValue("Range"), length) : null;
+        if (ranges == null) {
+            resp.setCode(200);
+            resp.set("Content-Type", contentType);
+            setContentLength(resp, length);
+            transfer(channel, 0, length - 1, resp.getByteChannel());
+        } else if (ranges.isEmpty()) {
+            resp.setCode(416);
+            resp.set("Content-Range", "bytes */" + length);
+        } else if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            resp.setCode(206);
+            resp.set("Content-Type", contentType);
+            resp.set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            setContentLength(resp, range[1] - range[0] + 1);
+            transfer(channel, range[0], range[1], resp.getByteChannel());
+        } else {
+            String boundary = UUID.randomUUID().toString();
+            List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+            long contentLength = 0;
+            for (long[] range : ranges) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes "
+                        + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n").getBytes("US-ASCII");
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + range[1] - range[0] + 1;
+            }
+            byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+            contentLength += trailer.length;
+            resp.setCode(206);
+            resp.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            setContentLength(resp, contentLength);
+            WritableByteChannel out = resp.getByteChannel();
+            for (int i = 0; i < ranges.size(); i++) {
+                write(ByteBuffer.wrap(partHeaders.get(i)), out);
+                transfer(channel, ranges.get(i)[0], ranges.get(i)[1], out);
+            }
+            write(ByteBuffer.wrap(trailer), out);
+        }
+    }
+
+    /**
+     * Parses the byte ranges of a Range header against the length of the
+     * content. Headers which are malformed or split the content into too many
+     * parts are ignored
+     *
+     * @return the first and last byte of each satisfiable range, an empty list
+     *         if no range is satisfiable or null to send the whole content
+     */
+    static List<long[]> parse(String header, long length) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        try {
+            for (String spec : specs) {
+                Matcher m = BYTE_RANGE.matcher(spec.trim());
+                if (!m.matches() || (m.group(1).length() == 0 && m.group(2).length() == 0)) {
+                    return null;
+                }
+                long start;
+                long end = length - 1;
+                if (m.group(1).length() == 0) {
+                    // a suffix range requests the last n bytes
+                    start = Math.max(0, length - Long.parseLong(m.group(2)));
+                } else {
+                    start = Long.parseLong(m.group(1));
+                    if (m.group(2).length() > 0) {
+                        long last = Long.parseLong(m.group(2));
+                        if (last < start) {
+                            return null;
+                        }
+                        end = Math.min(end, last);
+                    }
+                }
+                if (start < length && start <= end) {
+                    ranges.add(new long[] { start, end });
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Sets the Content-Length header from a long, Response.setContentLength
+     * takes an int which wraps for content larger than 2 GiB
+     */
+    static void setContentLength(Response resp, long length) {
+        resp.set("Content-Length", String.valueOf(length));
+    }
+
+    private static void transfer(FileChannel channel, long start, long end, WritableByteChannel out) throws IOException {
+        long pos = start;
+        while (pos <= end) {
+            pos += channel.transferTo(pos, end - pos + 1, out);
+        }
+    }
+
+    private static void write(ByteBuffer buf, WritableByteChannel out) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+}
@@ -19,14 +19,20 @@ public class ConnectorAPIMock implements Runnable {
 	private static final Logger LOG = LoggerFactory.getLogger(ConnectorAPIMock.class);
 	private final int port;
 	private final String path;
+	private final MockConfiguration config;
 	private SocketConnection conn;
 	private volatile boolean running = false;
 	private MockContainer container;
 	private long startupMem;
 
 	public ConnectorAPIMock(int port) {
+		this(port, new MockConfiguration());
+	}
+
+	public ConnectorAPIMock(int port, MockConfiguration config) {
 		this.path = System.getProperty("java.io.tmpdir") + "/scape-tck-" + System.getProperty("user.name");
 		this.port = port;
+		this.config = config;
 	}
 
 	public void close() throws Exception {
@@ -51,7 +57,7 @@ public class ConnectorAPIMock implements Runnable {
 	}
 
 	private void startServer() throws Exception {
-		this.container = new MockContainer(this.path, this.port);
+		this.container = new MockContainer(this.path, this.port, this.config);
 		this.conn = new SocketConnection(this.container);
 		this.startupMem = Runtime.getRuntime().totalMemory();
 		this.container.start();
@@ -68,5 +74,19 @@ public class ConnectorAPIMock implements Runnable {
 		LOG.debug(">> total used:\t" + fmt.format((double) Runtime.getRuntime().totalMemory() / (1024d * 1024d)) + " MB ");
 		LOG.debug(">> after start:\t" + fmt.format(startupMem / (1024d * 1024d)) + " MB");
 		LOG.debug(">> growth:\t\t" + fmt.format((Runtime.getRuntime().totalMemory() - startupMem)/(1024d*1024d)) + " MB");
+		MockContainer.AsyncIngester ingester = this.container.getAsyncIngester();
+		LOG.debug(">> async ingests:\t" + ingester.getDispatchedCount() + " dispatched, " + ingester.getQueueDepth() + " queued");
+		LOG.debug(">> async lag:\t" + ingester.getAverageLagMillis() + " ms avg, " + ingester.getMaxLagMillis() + " ms max");
+		EntityCache cache = this.container.getEntityCache();
+		LOG.debug(">> entity cache:\t" + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses, " + cache.getEvictionCount() + " evictions");
+		PosixStorage storage = this.container.getStorage();
+		LOG.debug(">> version deltas:\t" + storage.getDeltaBytesSaved() + " bytes saved, " + storage.getReconstructionCount()
+				+ " reconstructions, " + storage.getAverageReconstructionMicros() + " us avg");
+		RequestDispatcher<?> dispatcher = this.container.getDispatcher();
+		LOG.debug(">> requests:\t" + dispatcher.getRejectedCount() + " rejected, " + dispatcher.getQueueDepth() + " queued");
+		EntityLocks locks = this.container.getEntityLocks();
+		LOG.debug(">> entity locks:\t" + locks.getAcquiredCount() + " acquired, " + locks.getContendedCount() + " contended");
+		LOG.debug(">> group sync:\t" + storage.getGroupSyncedCount() + " versions in " + storage.getSyncBatchCount() + " batches, largest batch: "
+				+ storage.getLargestSyncBatch() + ", avg. " + storage.getAverageSyncBatchMicros() + " us per batch");
 	}
 }
@@ -0,0 +1,124 @@
+package eu.scapeproject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encodes a document as a deflate compressed list of instructions which copy
+ * ranges of a base document or insert literal bytes. Ranges are found by
+ * looking up fixed size blocks of the base document, so an update which
+ * changes a single representation results in a delta holding little more than
+ * the changed part
+ *
+ */
+public final class DeltaCodec {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+
+    private DeltaCodec() {
+    }
+
+    public static byte[] encode(byte[] base, byte[] target) throws IOException {
+        Map<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+            Integer hash = hash(base, i);
+            if (!blocks.containsKey(hash)) {
+                blocks.put(hash, i);
+            }
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bos));
+        out.writeInt(target.length);
+        int insertStart = 0;
+        int pos = 0;
+        while (pos + BLOCK_SIZE <= target.length) {
+            Integer candidate = blocks.get(hash(target, pos));
+            if (candidate == null || !matches(base, candidate, target, pos, BLOCK_SIZE)) {
+                pos++;
+                continue;
+            }
+            int from = candidate;
+            int start = pos;
+            // grow the match backwards into the pending literal bytes and forwards as far as possible
+            while (start > insertStart && from > 0 && base[from - 1] == target[start - 1]) {
+                start--;
+                from--;
+            }
+            int end = pos + BLOCK_SIZE;
+            int baseEnd = candidate + BLOCK_SIZE;
+            while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                end++;
+                baseEnd++;
+            }
+            writeInsert(out, target, insertStart, start);
+            out.writeByte(COPY);
+            out.writeInt(from);
+            out.writeInt(end - start);
+            pos = end;
+            insertStart = end;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    public static byte[] decode(byte[] base, byte[] delta) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(delta)));
+        try {
+            byte[] target = new byte[in.readInt()];
+            int pos = 0;
+            while (pos < target.length) {
+                int op = in.readByte();
+                int length;
+                if (op == COPY) {
+                    int from = in.readInt();
+                    length = in.readInt();
+                    System.arraycopy(base, from, target, pos, length);
+                } else if (op == INSERT) {
+                    length = in.readInt();
+                    in.readFully(target, pos, length);
+                } else {
+                    throw new IOException("corrupt delta, unknown instruction " + op);
+                }
+                pos += length;
+            }
+            return target;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] target, int start, int end) throws IOException {
+        if (end > start) {
+            out.writeByte(INSERT);
+            out.writeInt(end - start);
+            out.write(target, start, end - start);
+        }
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
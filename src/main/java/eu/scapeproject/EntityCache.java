@@ -0,0 +1,146 @@
+package eu.scapeproject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import eu.scapeproject.model.BitStream;
+import eu.scapeproject.model.File;
+import eu.scapeproject.model.IntellectualEntity;
+import eu.scapeproject.model.Representation;
+
+/**
+ * LRU cache of deserialized {@link IntellectualEntity} versions. The cache is
+ * bounded by the summed size of the entities' XML representations. Each
+ * cached version carries an index of its files and bitstreams, so sub
+ * resources can be fetched without walking the entity
+ *
+ */
+public class EntityCache {
+
+    private final LinkedHashMap<String, CachedEntity> entries = new LinkedHashMap<String, CachedEntity>(16, 0.75f, true);
+    private final long maxWeight;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public EntityCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    public synchronized CachedEntity get(String id, int version) {
+        CachedEntity cached = entries.get(key(id, version));
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return cached;
+    }
+
+    public CachedEntity put(String id, int version, IntellectualEntity entity, long entityWeight) {
+        // build the sub resource index outside of the lock
+        CachedEntity cached = new CachedEntity(entity, entityWeight);
+        if (entityWeight <= maxWeight) {
+            add(key(id, version), cached);
+        }
+        return cached;
+    }
+
+    private synchronized void add(String key, CachedEntity cached) {
+        CachedEntity previous = entries.put(key, cached);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += cached.weight;
+        Iterator<Map.Entry<String, CachedEntity>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().getValue().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidate(String id, int version) {
+        CachedEntity removed = entries.remove(key(id, version));
+        if (removed != null) {
+            weight -= removed.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String key(String id, int version) {
+        return id + "/" + version;
+    }
+
+    public static class CachedEntity {
+        private final IntellectualEntity entity;
+        private final long weight;
+        private final Map<String, Object> parts = new HashMap<String, Object>();
+
+        private CachedEntity(IntellectualEntity entity, long weight) {
+            this.entity = entity;
+            this.weight = weight;
+            if (entity.getRepresentations() == null) {
+                return;
+            }
+            for (Representation r : entity.getRepresentations()) {
+                if (r.getFiles() == null) {
+                    continue;
+                }
+                for (File f : r.getFiles()) {
+                    if (f.getIdentifier() != null) {
+                        parts.put(f.getIdentifier().getValue(), f);
+                    }
+                    if (f.getBitStreams() != null) {
+                        for (BitStream bs : f.getBitStreams()) {
+                            if (bs.getIdentifier() != null) {
+                                parts.put(bs.getIdentifier().getValue(), bs);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        public IntellectualEntity getEntity() {
+            return entity;
+        }
+
+        public File getFile(String id) {
+            Object part = parts.get(id);
+            return (part instanceof File) ? (File) part : null;
+        }
+
+        public BitStream getBitStream(String id) {
+            Object part = parts.get(id);
+            return (part instanceof BitStream) ? (BitStream) part : null;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package eu.scapeproject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks serializing the read-modify-write cycles on the versions of
+ * an entity. Ids are hashed onto a fixed number of locks, so updates of the
+ * same entity are applied one after the other while updates of different
+ * entities only wait for each other if they happen to share a stripe
+ *
+ */
+public class EntityLocks {
+
+    private final ReentrantLock[] stripes;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+
+    public EntityLocks(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("at least one lock stripe is needed");
+        }
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquires the lock of an entity. The caller has to unlock the returned
+     * lock in a finally block
+     */
+    public Lock lock(String id) {
+        ReentrantLock lock = stripes[stripe(id)];
+        acquired.incrementAndGet();
+        if (!lock.tryLock()) {
+            contended.incrementAndGet();
+            lock.lock();
+        }
+        return lock;
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * Returns the number of lock acquisitions which had to wait for another
+     * thread
+     */
+    public long getContendedCount() {
+        return contended.get();
+    }
+
+    private int stripe(String id) {
+        // spread the bits of the hash code, ids often differ in the last characters only
+        int h = id.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+}
@@ -0,0 +1,266 @@
+package eu.scapeproject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit for files written by concurrent requests. Writers hand their
+ * file to a sync thread and block until it has been forced to disk. The sync
+ * thread takes all files pending at once as a batch and forces each of them
+ * on its own, in parallel. The next batch piles up until the whole batch is
+ * on disk, so under load many writes share the wait for the disk instead of
+ * queueing for it one by one
+ *
+ */
+class GroupSync {
+
+    private static final Request STOP = new Request(null);
+
+    // directories can only be opened via FileChannel.open, which is looked up
+    // at runtime since it doesn't exist before Java 7
+    private static final Method TO_PATH;
+    private static final Method OPEN;
+    private static final Object READ;
+
+    static {
+        Method toPath = null;
+        Method open = null;
+        Object read = null;
+        try {
+            Class<?> option = Class.forName("java.nio.file.OpenOption");
+            toPath = File.class.getMethod("toPath");
+            open = FileChannel.class.getMethod("open", Class.forName("java.nio.file.Path"), Array.newInstance(option, 0).getClass());
+            read = Array.newInstance(option, 1);
+            Array.set(read, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+        } catch (Exception e) {
+            toPath = null;
+            open = null;
+        }
+        TO_PATH = toPath;
+        OPEN = open;
+        READ = read;
+    }
+
+    private final BlockingQueue<Request> pending = new LinkedBlockingQueue<Request>();
+    private final Thread syncer;
+    private final ExecutorService forcers;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private final AtomicInteger largestBatch = new AtomicInteger();
+    private boolean closed;
+
+    /**
+     * @param threads
+     *            the number of files of a batch forced in parallel
+     */
+    GroupSync(final String name, int threads) {
+        forcers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        syncer = new Thread(new Runnable() {
+            public void run() {
+                syncBatches();
+            }
+        }, name);
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Blocks until the given file has been forced to disk
+     */
+    void force(File f) throws IOException {
+        Request request = new Request(f);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Unable to sync " + f.getAbsolutePath() + ", the storage is closed");
+            }
+            pending.add(request);
+        }
+        try {
+            request.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + f.getAbsolutePath() + " to be synced");
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+    }
+
+    /**
+     * Syncs the files handed in so far and stops the sync thread
+     */
+    void close() throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.add(STOP);
+        }
+        syncer.join();
+        forcers.shutdown();
+    }
+
+    long getBatchCount() {
+        return batches.get();
+    }
+
+    long getFileCount() {
+        return files.get();
+    }
+
+    long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    /**
+     * Returns the average time in microseconds from the start of a batch
+     * until all of its files are on disk
+     */
+    long getAverageBatchMicros() {
+        long count = batches.get();
+        return count == 0 ? 0 : syncNanos.get() / count / 1000;
+    }
+
+    private void syncBatches() {
+        List<Request> batch = new ArrayList<Request>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                // only close() stops the sync thread, or writers would wait forever
+                continue;
+            }
+            pending.drainTo(batch);
+            if (batch.remove(STOP)) {
+                stop = true;
+            }
+            if (!batch.isEmpty()) {
+                long start = System.nanoTime();
+                syncBatch(batch);
+                syncNanos.addAndGet(System.nanoTime() - start);
+                batches.incrementAndGet();
+                files.addAndGet(batch.size());
+                if (batch.size() > largestBatch.get()) {
+                    largestBatch.set(batch.size());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces all files of a batch in parallel and returns once every one of
+     * them is on disk. Each writer is released as soon as its own file is
+     * synced
+     */
+    private void syncBatch(List<Request> batch) {
+        if (batch.size() == 1) {
+            batch.get(0).sync();
+            return;
+        }
+        final CountDownLatch synced = new CountDownLatch(batch.size());
+        for (final Request request : batch) {
+            forcers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        request.sync();
+                    } finally {
+                        synced.countDown();
+                    }
+                }
+            });
+        }
+        boolean interrupted = false;
+        while (synced.getCount() > 0) {
+            try {
+                synced.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void force(File f, boolean metaData) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.getChannel().force(metaData);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Forces a directory to disk, which makes the files renamed into or
+     * created in it durable
+     */
+    static void forceDirectory(File dir) throws IOException {
+        if (OPEN == null) {
+            throw new IOException("Unable to open directory " + dir.getAbsolutePath() + ", this needs Java 7");
+        }
+        FileChannel channel;
+        try {
+            channel = (FileChannel) OPEN.invoke(null, TO_PATH.invoke(dir), READ);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to open directory " + dir.getAbsolutePath(), e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to open directory " + dir.getAbsolutePath(), e);
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static class Request {
+        private final File file;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException error;
+
+        private Request(File file) {
+            this.file = file;
+        }
+
+        private void sync() {
+            try {
+                force(file, true);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
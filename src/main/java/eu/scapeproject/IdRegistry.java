@@ -0,0 +1,484 @@
+package eu.scapeproject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent registry mapping the ids of files, bitstreams and
+ * representations to the id of the owning entity, file ids to their stored
+ * content and entity ids to their lifecycle state. Mappings are appended to a
+ * log file and located via an open addressing hash index which is memory
+ * mapped, so the registry is available right after a restart without reading
+ * all mappings onto the heap. A missing or damaged index is rebuilt from the
+ * log. Unless durability is disabled a mapping is forced to disk before put
+ * returns, concurrent puts share one force of the log. Callers recording
+ * several mappings at once append them and force the log once using
+ * {@link #sync()}.
+ * <p>
+ * Pages of the index may be written back in any order, so the header only
+ * records the length of the log up to which the index has been forced as a
+ * checkpoint. On start the records after the checkpoint are replayed.
+ *
+ */
+public class IdRegistry {
+
+    public enum Type {
+        FILE, BITSTREAM, REPRESENTATION,
+        /** maps a file id to the SHA-256 digest of its content in the datastream store */
+        CONTENT,
+        /** maps an entity id to the lifecycle state of entities stored as posted */
+        LIFECYCLE
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdRegistry.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x53494452;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    /** slots are padded so that none of them spans two pages */
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    /** type, two length prefixed ids of at most 0xffff bytes each */
+    private static final int MAX_RECORD_SIZE = 1 + 2 + 0xffff + 2 + 0xffff;
+    /** the amount of forced log after which the index is checkpointed */
+    private static final long CHECKPOINT_INTERVAL = 4L * 1024 * 1024;
+
+    private final File logFile;
+    private final File indexFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final boolean forcePuts;
+    private final Object forceLock = new Object();
+    private long forcedLength;
+    private long checkpointLength;
+    private RandomAccessFile log;
+    private FileChannel logChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private long logLength;
+
+    public IdRegistry(String directory) throws IOException {
+        this(directory, new MockConfiguration().getDurability());
+    }
+
+    public IdRegistry(String directory, MockConfiguration.Durability durability) throws IOException {
+        this.forcePuts = (durability != MockConfiguration.Durability.NONE);
+        File dir = new File(directory);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        if (!dir.isDirectory() || !dir.canRead() || !dir.canWrite()) {
+            throw new IOException("Unable to access directory " + dir.getAbsolutePath());
+        }
+        this.logFile = new File(dir, "ids.log");
+        this.indexFile = new File(dir, "ids.idx");
+        this.log = new RandomAccessFile(logFile, "rw");
+        this.logChannel = log.getChannel();
+        long actualLength = logChannel.size();
+        if (!loadIndex(actualLength)) {
+            LOG.info("rebuilding id index from " + logFile.getAbsolutePath());
+            createIndex(INITIAL_CAPACITY);
+            replay(0, actualLength);
+        } else {
+            // slots written after the checkpoint may or may not have made it to disk
+            replay(logLength, actualLength);
+            if (!recount()) {
+                LOG.warn("rebuilding id index " + indexFile.getAbsolutePath() + " pointing past the end of the log");
+                createIndex(INITIAL_CAPACITY);
+                replay(0, logLength);
+            }
+        }
+        logChannel.force(false);
+        this.forcedLength = logLength;
+        checkpoint(logLength);
+        LOG.info("id registry loaded with " + count + " mappings");
+    }
+
+    public String get(Type type, String id) throws IOException {
+        byte[] key = id.getBytes(UTF8);
+        int hash = hash(type, key);
+        lock.readLock().lock();
+        try {
+            int mask = capacity - 1;
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                int pos = HEADER_SIZE + slot * SLOT_SIZE;
+                long offset = index.getLong(pos + 4);
+                if (offset == 0) {
+                    return null;
+                }
+                if (index.getInt(pos) == hash) {
+                    Record r = readRecord(offset - 1);
+                    if (r != null && r.matches(type, key)) {
+                        return new String(r.value, UTF8);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records a mapping, which is on disk once this method returns unless
+     * durability is disabled
+     */
+    public void put(Type type, String id, String entityId) throws IOException {
+        long end = append(type, id, entityId);
+        if (forcePuts) {
+            force(end);
+        }
+    }
+
+    /**
+     * Records a mapping without forcing it to disk. A batch of mappings
+     * appended this way is made durable by one call of {@link #sync()}
+     *
+     * @return the length of the log including the mapping
+     */
+    public long append(Type type, String id, String entityId) throws IOException {
+        byte[] key = id.getBytes(UTF8);
+        byte[] value = entityId.getBytes(UTF8);
+        if (key.length > 0xffff || value.length > 0xffff) {
+            throw new IllegalArgumentException("id too long");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4 + 1 + 2 + key.length + 2 + value.length);
+        buf.putInt(buf.capacity() - 4);
+        buf.put((byte) type.ordinal());
+        buf.putShort((short) key.length);
+        buf.put(key);
+        buf.putShort((short) value.length);
+        buf.put(value);
+        buf.flip();
+        long end;
+        lock.writeLock().lock();
+        try {
+            long offset = logLength;
+            while (buf.hasRemaining()) {
+                logChannel.write(buf, offset + buf.position());
+            }
+            insert(hash(type, key), offset, type, key);
+            end = offset + buf.capacity();
+            logLength = end;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return end;
+    }
+
+    /**
+     * Forces all mappings appended so far to disk, unless durability is
+     * disabled
+     */
+    public void sync() throws IOException {
+        if (!forcePuts) {
+            return;
+        }
+        long end;
+        lock.readLock().lock();
+        try {
+            end = logLength;
+        } finally {
+            lock.readLock().unlock();
+        }
+        force(end);
+    }
+
+    /**
+     * Forces the log up to the given length to disk, unless another put has
+     * done so already while this one was waiting
+     */
+    private void force(long length) throws IOException {
+        synchronized (forceLock) {
+            if (forcedLength >= length) {
+                return;
+            }
+            long target;
+            lock.readLock().lock();
+            try {
+                target = logLength;
+            } finally {
+                lock.readLock().unlock();
+            }
+            logChannel.force(false);
+            forcedLength = target;
+            if (forcedLength - checkpointLength >= CHECKPOINT_INTERVAL) {
+                checkpoint(forcedLength);
+            }
+        }
+    }
+
+    /**
+     * Forces the index and then records the given length of the log, up to
+     * which all records are in the forced index, in the header. Must be
+     * called with the force lock held
+     */
+    private void checkpoint(long length) throws IOException {
+        lock.readLock().lock();
+        try {
+            index.force();
+            index.putInt(12, count);
+            index.putLong(16, length);
+            index.force();
+            checkpointLength = length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() throws IOException {
+        synchronized (forceLock) {
+            lock.writeLock().lock();
+            try {
+                logChannel.truncate(0);
+                createIndex(INITIAL_CAPACITY);
+                index.force();
+                forcedLength = 0;
+                checkpointLength = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (forceLock) {
+            lock.writeLock().lock();
+            try {
+                logChannel.force(false);
+                forcedLength = logLength;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            checkpoint(forcedLength);
+            log.close();
+        }
+    }
+
+    private boolean loadIndex(long actualLogLength) throws IOException {
+        if (!indexFile.exists() || indexFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        MappedByteBuffer buf = map(indexFile, indexFile.length());
+        int cap = buf.getInt(8);
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION || cap <= 0 || Integer.bitCount(cap) != 1
+                || indexFile.length() != HEADER_SIZE + (long) cap * SLOT_SIZE || buf.getLong(16) > actualLogLength) {
+            LOG.warn("discarding invalid id index " + indexFile.getAbsolutePath());
+            return false;
+        }
+        this.index = buf;
+        this.capacity = cap;
+        this.count = buf.getInt(12);
+        this.logLength = buf.getLong(16);
+        return true;
+    }
+
+    /**
+     * Counts the used slots of the index
+     *
+     * @return false if a slot points past the end of the log, i.e. at a record
+     *         which has been lost in a crash
+     */
+    private boolean recount() {
+        int used = 0;
+        for (int i = 0; i < capacity; i++) {
+            long offset = index.getLong(HEADER_SIZE + i * SLOT_SIZE + 4);
+            if (offset > logLength) {
+                return false;
+            }
+            if (offset != 0) {
+                used++;
+            }
+        }
+        count = used;
+        return true;
+    }
+
+    private void createIndex(int cap) throws IOException {
+        this.index = newIndex(indexFile, cap);
+        this.capacity = cap;
+        this.count = 0;
+        this.logLength = 0;
+    }
+
+    private static MappedByteBuffer newIndex(File f, int cap) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) cap * SLOT_SIZE);
+        } finally {
+            raf.close();
+        }
+        MappedByteBuffer buf = map(f, f.length());
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, FORMAT_VERSION);
+        buf.putInt(8, cap);
+        buf.putInt(12, 0);
+        buf.putLong(16, 0);
+        return buf;
+    }
+
+    private static MappedByteBuffer map(File f, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            // the mapping stays valid after the file has been closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Adds the log records between the given offsets to the index. A record
+     * which has only partly been written before a crash is cut off.
+     */
+    private void replay(long from, long to) throws IOException {
+        long offset = from;
+        while (offset < to) {
+            Record r = readRecord(offset);
+            if (r == null || offset + r.length > to) {
+                LOG.warn("truncating incomplete id log record at offset " + offset);
+                logChannel.truncate(offset);
+                break;
+            }
+            insert(hash(r.type, r.key), offset, r.type, r.key);
+            offset += r.length;
+        }
+        logLength = offset;
+    }
+
+    private void insert(int hash, long offset, Type type, byte[] key) throws IOException {
+        if ((count + 1) * 10L > capacity * 7L) {
+            grow();
+        }
+        int mask = capacity - 1;
+        for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long existing = index.getLong(pos + 4);
+            if (existing == 0) {
+                index.putInt(pos, hash);
+                index.putLong(pos + 4, offset + 1);
+                count++;
+                return;
+            }
+            Record r = (index.getInt(pos) == hash) ? readRecord(existing - 1) : null;
+            if (r != null && r.matches(type, key)) {
+                // a newer mapping for the same id replaces the old one
+                index.putLong(pos + 4, offset + 1);
+                return;
+            }
+        }
+    }
+
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        MappedByteBuffer grown = newIndex(tmp, newCapacity);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            int pos = HEADER_SIZE + i * SLOT_SIZE;
+            long offset = index.getLong(pos + 4);
+            if (offset == 0) {
+                continue;
+            }
+            int hash = index.getInt(pos);
+            int slot = hash & mask;
+            while (grown.getLong(HEADER_SIZE + slot * SLOT_SIZE + 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            grown.putInt(HEADER_SIZE + slot * SLOT_SIZE, hash);
+            grown.putLong(HEADER_SIZE + slot * SLOT_SIZE + 4, offset);
+        }
+        // the grown index is forced completely, but the log may not be
+        grown.putInt(12, count);
+        grown.putLong(16, index.getLong(16));
+        grown.force();
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Unable to replace " + indexFile.getAbsolutePath());
+        }
+        this.index = grown;
+        this.capacity = newCapacity;
+    }
+
+    private Record readRecord(long offset) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        if (!readFully(len, offset)) {
+            return null;
+        }
+        int size = len.getInt(0);
+        // a damaged length must not make us allocate or read past the log
+        if (size < 5 || size > MAX_RECORD_SIZE || offset + 4 + size > logChannel.size()) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(size);
+        if (!readFully(body, offset + 4)) {
+            return null;
+        }
+        body.flip();
+        try {
+            int type = body.get();
+            if (type < 0 || type >= Type.values().length) {
+                return null;
+            }
+            byte[] key = new byte[body.getShort() & 0xffff];
+            body.get(key);
+            byte[] value = new byte[body.getShort() & 0xffff];
+            body.get(value);
+            return new Record(Type.values()[type], key, value, 4 + size);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private boolean readFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (logChannel.read(buf, offset + buf.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(Type type, byte[] key) {
+        int h = type.ordinal() * 31 + Arrays.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static class Record {
+        private final Type type;
+        private final byte[] key;
+        private final byte[] value;
+        private final int length;
+
+        private Record(Type type, byte[] key, byte[] value, int length) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.length = length;
+        }
+
+        private boolean matches(Type otherType, byte[] otherKey) {
+            return type == otherType && Arrays.equals(key, otherKey);
+        }
+    }
+}
@@ -1,8 +1,19 @@
 package eu.scapeproject;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.JAXBElement;
 
@@ -10,15 +21,28 @@ import org.apache.lucene.analysis.SimpleAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
 import org.purl.dc.elements._1.ElementContainer;
@@ -29,115 +53,389 @@ import org.slf4j.LoggerFactory;
 import eu.scapeproject.model.IntellectualEntity;
 import eu.scapeproject.model.Representation;
 
+/**
+ * Search index for entities and representations. Documents are made visible
+ * through near-real-time readers shared by all searches and committed in
+ * groups instead of after each document. A search reopens the shared reader
+ * only if documents have been added since the last reopen, so clients always
+ * find what they have just ingested while repeated searches reuse one
+ * reader. The index is either kept on the heap or memory mapped from disk,
+ * depending on the configured backend
+ *
+ */
 public class LuceneIndex {
-    private final Directory entityDir = new RAMDirectory();
-    private final Directory representationDir = new RAMDirectory();
-    private IndexWriter entityWriter;
-    private IndexWriter representationWriter;
+    private final Directory entityDir;
+    private final Directory representationDir;
+    private final IndexWriter entityWriter;
+    private final IndexWriter representationWriter;
+    private final SearcherManager entitySearcher;
+    private final SearcherManager representationSearcher;
+    private final AtomicBoolean entitiesChanged = new AtomicBoolean();
+    private final AtomicBoolean representationsChanged = new AtomicBoolean();
+    private final AtomicInteger uncommitted = new AtomicInteger();
+    private final int commitBatchSize;
+    private final ScheduledExecutorService scheduler;
+    private final File dirtyMarker;
+    private final boolean stale;
     private static final Logger LOG = LoggerFactory.getLogger(LuceneIndex.class);
+    private static final FieldSelector ID_FIELD = new MapFieldSelector("id");
+    private static final String ENTITY_FIELD = "entity";
+
+    private final Runnable commitTask = new Runnable() {
+        public void run() {
+            try {
+                commit();
+            } catch (IOException e) {
+                LOG.error("unable to commit index", e);
+            }
+        }
+    };
+
+    public LuceneIndex() throws IOException {
+        this(null, heapConfiguration());
+    }
+
+    private static MockConfiguration heapConfiguration() {
+        MockConfiguration config = new MockConfiguration();
+        config.setIndexBackend(MockConfiguration.IndexBackend.RAM);
+        return config;
+    }
+
+    /**
+     * Creates an index in the given directory, which is only used if the
+     * configured backend is {@link MockConfiguration.IndexBackend#MMAP}
+     */
+    public LuceneIndex(String directory, MockConfiguration config) throws IOException {
+        this.commitBatchSize = config.getIndexCommitBatchSize();
+        boolean leftover = false;
+        if (config.getIndexBackend() == MockConfiguration.IndexBackend.MMAP) {
+            this.entityDir = new MMapDirectory(new File(directory, "entities"));
+            this.representationDir = new MMapDirectory(new File(directory, "representations"));
+            // the marker exists while the index is open, so a leftover one means it wasn't closed cleanly
+            this.dirtyMarker = new File(directory, "dirty");
+            leftover = dirtyMarker.exists();
+            dirtyMarker.getParentFile().mkdirs();
+            if (!leftover && !dirtyMarker.createNewFile()) {
+                throw new IOException("Unable to create " + dirtyMarker.getAbsolutePath());
+            }
+            GroupSync.force(dirtyMarker, true);
+        } else {
+            this.entityDir = new RAMDirectory();
+            this.representationDir = new RAMDirectory();
+            this.dirtyMarker = null;
+        }
+        this.entityWriter = openWriter(entityDir);
+        this.representationWriter = openWriter(representationDir);
+        this.entitySearcher = new SearcherManager(entityWriter, true, new SearcherFactory());
+        this.representationSearcher = new SearcherManager(representationWriter, true, new SearcherFactory());
+        this.stale = leftover || lacksEntityField();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "lucene-index");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long commit = config.getIndexCommitInterval();
+        this.scheduler.scheduleWithFixedDelay(commitTask, commit, commit, TimeUnit.MILLISECONDS);
+    }
+
+    private static IndexWriter openWriter(Directory dir) throws IOException {
+        try {
+            return new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+        } catch (CorruptIndexException e) {
+            // the index will be rebuilt from the storage, so start over with an empty one
+            LOG.warn("discarding corrupt index " + dir, e);
+            return new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36))
+                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+        }
+    }
 
     public void addEntity(IntellectualEntity entity) throws IOException {
-        LOG.info("++ adding entity " + entity.getIdentifier().getValue());
-        Document doc = new Document();
-        doc.add(new Field("id", entity.getIdentifier().getValue(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        List<String> titles = new ArrayList<String>();
+        List<String> descriptions = new ArrayList<String>();
         Object o = entity.getDescriptive();
         if (o instanceof ElementContainer){
-            List<String> titles = new ArrayList<String>();
             ElementContainer dc = (ElementContainer) o;
             for (JAXBElement<?> jaxb : dc.getAny()){
                 if (jaxb.getName().getLocalPart().equals("title")){
                     SimpleLiteral lit = (SimpleLiteral) jaxb.getValue();
-                    for (String title : lit.getContent()){
-                        doc.add(new Field("title", title, Field.Store.YES, Field.Index.ANALYZED));
-                    }
+                    titles.addAll(lit.getContent());
                 }else if (jaxb.getName().getLocalPart().equals("description")){
                     SimpleLiteral lit = (SimpleLiteral) jaxb.getValue();
-                    for (String title : lit.getContent()){
-                        doc.add(new Field("description", title, Field.Store.YES, Field.Index.ANALYZED));
-                    }
+                    descriptions.addAll(lit.getContent());
                 }
             }
         }
         if (entity.getRepresentations() != null) {
             for (Representation r : entity.getRepresentations()) {
-                addRepresentation(r);
+                addRepresentation(entity.getIdentifier().getValue(), r);
             }
         }
-        getEntityWriter().addDocument(doc);
-        getEntityWriter().commit();
+        addEntity(entity.getIdentifier().getValue(), titles, descriptions);
     }
 
-    public void addRepresentation(Representation r) throws IOException {
-        LOG.info("adding representation " + r.getIdentifier() + " with title " + r.getTitle());
+    /**
+     * Indexes an entity by its DC titles and descriptions, for callers which
+     * don't have a deserialized {@link IntellectualEntity} at hand
+     */
+    public void addEntity(String id, List<String> titles, List<String> descriptions) throws IOException {
+        LOG.info("++ adding entity " + id);
         Document doc = new Document();
-        doc.add(new Field("id", r.getIdentifier().getValue(), Field.Store.YES, Field.Index.NOT_ANALYZED));
-        if (r.getTitle() != null) {
-            doc.add(new Field("title", r.getTitle(), Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        for (String title : titles) {
+            doc.add(new Field("title", title, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        for (String description : descriptions) {
+            doc.add(new Field("description", description, Field.Store.YES, Field.Index.ANALYZED));
         }
-        getRepresentationWriter().addDocument(doc);
-        getRepresentationWriter().commit();
+        entityWriter.updateDocument(new Term("id", id), doc);
+        entitiesChanged.set(true);
+        documentAdded();
     }
 
-    public void close() throws IOException {
-        if (this.entityWriter != null) {
-            this.entityWriter.close();
+    public void addRepresentation(String entityId, Representation r) throws IOException {
+        addRepresentation(entityId, r.getIdentifier().getValue(), r.getTitle());
+    }
+
+    /**
+     * Indexes a representation by its title together with the id of the
+     * entity it belongs to, by which representation hits are grouped
+     */
+    public void addRepresentation(String entityId, String id, String title) throws IOException {
+        LOG.info("adding representation " + id + " with title " + title);
+        Document doc = new Document();
+        doc.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field(ENTITY_FIELD, entityId, Field.Store.NO, Field.Index.NOT_ANALYZED));
+        if (title != null) {
+            doc.add(new Field("title", title, Field.Store.YES, Field.Index.ANALYZED));
         }
-        if (this.representationWriter != null){
-            this.representationWriter.close();
+        representationWriter.updateDocument(new Term("id", id), doc);
+        representationsChanged.set(true);
+        documentAdded();
+    }
+
+    private void documentAdded() {
+        if (uncommitted.incrementAndGet() == commitBatchSize) {
+            scheduler.execute(commitTask);
+        }
+    }
+
+    /**
+     * Commits all documents added since the last commit. Documents are
+     * searchable before they are committed
+     */
+    public synchronized void commit() throws IOException {
+        if (uncommitted.getAndSet(0) > 0) {
+            entityWriter.commit();
+            representationWriter.commit();
         }
-        this.entityDir.close();
-        this.representationDir.close();
     }
 
-    private IndexWriter getEntityWriter() throws IOException {
-        if (entityWriter == null) {
-            entityWriter = new IndexWriter(entityDir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+    /**
+     * Reopens the shared searchers if documents have been added since the last
+     * refresh. Called by every search, there is no periodic refresh
+     */
+    public void refresh() throws IOException {
+        refresh(entitySearcher, entitiesChanged);
+        refresh(representationSearcher, representationsChanged);
+    }
+
+    private void refresh(SearcherManager manager, AtomicBoolean changed) throws IOException {
+        if (changed.getAndSet(false) && !manager.maybeRefresh()) {
+            // another thread is reopening right now, so try again next time
+            changed.set(true);
         }
-        return entityWriter;
     }
 
-    private IndexWriter getRepresentationWriter() throws IOException {
-        if (representationWriter == null) {
-            representationWriter = new IndexWriter(representationDir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+    /**
+     * Returns the number of indexed entities, including the ones not yet
+     * committed
+     */
+    /**
+     * Checks for representations indexed before the id of their entity was
+     * indexed along with them
+     */
+    private boolean lacksEntityField() throws IOException {
+        BooleanQuery withoutEntity = new BooleanQuery();
+        withoutEntity.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        withoutEntity.add(new TermRangeQuery(ENTITY_FIELD, null, null, true, true), BooleanClause.Occur.MUST_NOT);
+        IndexSearcher searcher = representationSearcher.acquire();
+        try {
+            return searcher.search(withoutEntity, 1).totalHits > 0;
+        } finally {
+            representationSearcher.release(searcher);
+        }
+    }
+
+    public int getEntityCount() throws IOException {
+        return entityWriter.numDocs();
+    }
+
+    /**
+     * Returns true if the index has not been closed cleanly the last time it
+     * was used, so documents added after its last commit may be missing, or if
+     * it has representations indexed without their entity
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    public synchronized void clear() throws IOException {
+        entityWriter.deleteAll();
+        representationWriter.deleteAll();
+        entityWriter.commit();
+        representationWriter.commit();
+        uncommitted.set(0);
+        entitiesChanged.set(true);
+        representationsChanged.set(true);
+    }
+
+    public void close() throws IOException {
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.entitySearcher.close();
+        this.representationSearcher.close();
+        this.commit();
+        this.entityWriter.close();
+        this.representationWriter.close();
+        this.entityDir.close();
+        this.representationDir.close();
+        if (dirtyMarker != null && !dirtyMarker.delete()) {
+            LOG.warn("unable to delete " + dirtyMarker.getAbsolutePath() + ", the index will be rebuilt on the next start");
         }
-        return representationWriter;
     }
 
     public List<String> searchEntity(String term) throws Exception {
+        return searchEntity(term, 0, 10).getIds();
+    }
+
+    public SearchResult searchEntity(String term, int offset, int maxHits) throws Exception {
         LOG.info(":: searching for " + term);
-        IndexSearcher searcher = new IndexSearcher(IndexReader.open(entityDir));
         Query query = MultiFieldQueryParser.parse(
                 Version.LUCENE_36,
                 new String[] { term, term, term },
                 new String[] { "id", "title", "description" },
                 new SimpleAnalyzer(Version.LUCENE_36));
-        TopDocs hits = searcher.search(query, 10);
-        List<String> result = new ArrayList<String>();
-        for (ScoreDoc hit : hits.scoreDocs) {
-            Document doc = searcher.doc(hit.doc);
-            result.add(doc.get("id"));
-        }
-        searcher.close();
-        LOG.info(":: search yielded " + result.size() + " hits");
+        SearchResult result = search(entitySearcher, query, offset, maxHits);
+        LOG.info(":: search yielded " + result.getTotalHits() + " hits");
         return result;
     }
 
+    /**
+     * @return the ids of the first entities with a matching representation
+     */
     public List<String> searchRepresentation(String term) throws Exception {
-        IndexSearcher searcher = new IndexSearcher(IndexReader.open(representationDir));
+        return searchRepresentation(term, 0, 10).getIds();
+    }
+
+    /**
+     * Searches representations by their title. The hits are grouped by their
+     * entity, so the result holds the ids of the entities with matching
+     * representations, ranked by their best matching one, and the number of
+     * these entities. Grouping needs all hits, so every page costs as much as
+     * the whole result
+     */
+    public SearchResult searchRepresentation(String term, int offset, int maxHits) throws Exception {
         Query query = MultiFieldQueryParser.parse(
                 Version.LUCENE_36,
                 new String[] { term },
                 new String[] { "title" },
                 new SimpleAnalyzer(Version.LUCENE_36));
-        TopDocs hits = searcher.search(query, 10);
-        List<String> result = new ArrayList<String>();
-        for (ScoreDoc hit : hits.scoreDocs) {
-            Document doc = searcher.doc(hit.doc);
-            result.add(doc.get("id"));
-        }
-        searcher.close();
-        LOG.info("++ representation search yielded " + result.size() + " hits");
-        return result;
+        refresh();
+        IndexSearcher searcher = representationSearcher.acquire();
+        try {
+            final Map<String, Float> scores = new HashMap<String, Float>();
+            searcher.search(query, new Collector() {
+                private Scorer scorer;
+                private String[] entities;
+
+                public void setScorer(Scorer scorer) {
+                    this.scorer = scorer;
+                }
+
+                public void setNextReader(IndexReader reader, int docBase) throws IOException {
+                    entities = FieldCache.DEFAULT.getStrings(reader, ENTITY_FIELD);
+                }
+
+                public void collect(int doc) throws IOException {
+                    String entity = entities[doc];
+                    if (entity != null) {
+                        float score = scorer.score();
+                        Float best = scores.get(entity);
+                        if (best == null || score > best) {
+                            scores.put(entity, score);
+                        }
+                    }
+                }
+
+                public boolean acceptsDocsOutOfOrder() {
+                    return true;
+                }
+            });
+            List<Map.Entry<String, Float>> ranked = new ArrayList<Map.Entry<String, Float>>(scores.entrySet());
+            Collections.sort(ranked, new Comparator<Map.Entry<String, Float>>() {
+                public int compare(Map.Entry<String, Float> a, Map.Entry<String, Float> b) {
+                    int byScore = Float.compare(b.getValue(), a.getValue());
+                    return byScore != 0 ? byScore : a.getKey().compareTo(b.getKey());
+                }
+            });
+            List<String> ids = new ArrayList<String>();
+            for (int i = offset; i < ranked.size() && i < (long) offset + maxHits; i++) {
+                ids.add(ranked.get(i).getKey());
+            }
+            LOG.info("++ representation search yielded " + ranked.size() + " entities");
+            return new SearchResult(ranked.size(), ids);
+        } finally {
+            representationSearcher.release(searcher);
+        }
+    }
+
+    /**
+     * Collects the top offset + maxHits hits to return a page of them, so a
+     * page costs more the deeper it is. Callers have to bound the offset
+     */
+    private SearchResult search(SearcherManager manager, Query query, int offset, int maxHits) throws IOException {
+        // make sure a client sees the documents it has just added, this is a
+        // no-op unless documents have been added since the last search
+        refresh();
+        IndexSearcher searcher = manager.acquire();
+        try {
+            TopDocs hits = searcher.search(query, (int) Math.min(Integer.MAX_VALUE, Math.max(1L, (long) offset + maxHits)));
+            List<String> ids = new ArrayList<String>();
+            for (int i = offset; i < hits.scoreDocs.length; i++) {
+                // only the stored id is read, not the whole document
+                ids.add(searcher.doc(hits.scoreDocs[i].doc, ID_FIELD).get("id"));
+            }
+            return new SearchResult(hits.totalHits, ids);
+        } finally {
+            manager.release(searcher);
+        }
     }
 
+    /**
+     * A page of hits together with the total number of hits of the query, or
+     * of entities for a representation search
+     */
+    public static class SearchResult {
+        private final int totalHits;
+        private final List<String> ids;
+
+        private SearchResult(int totalHits, List<String> ids) {
+            this.totalHits = totalHits;
+            this.ids = ids;
+        }
+
+        public int getTotalHits() {
+            return totalHits;
+        }
+
+        public List<String> getIds() {
+            return ids;
+        }
+    }
 }
@@ -0,0 +1,297 @@
+package eu.scapeproject;
+
+/**
+ * Tuning knobs for the {@link ConnectorAPIMock}. Defaults can be overridden
+ * using system properties, e.g. <code>-Dscape.tck.async.workers=8</code>
+ *
+ */
+public class MockConfiguration {
+
+    public enum IndexBackend {
+        /** keep the search index on the heap, it is lost on restart */
+        RAM,
+        /** memory map the search index from the storage directory */
+        MMAP
+    }
+
+    public enum Durability {
+        /** leave flushing new versions to the operating system */
+        NONE,
+        /** fsync every new version before it is moved in place */
+        FSYNC,
+        /** fsync new versions of concurrent writes together in batches */
+        GROUP
+    }
+
+    private int asyncIngestWorkers = Integer.getInteger("scape.tck.async.workers", 4);
+    private long entityCacheSize = Long.getLong("scape.tck.cache.entities", 32L * 1024L * 1024L);
+    private int indexCommitBatchSize = Integer.getInteger("scape.tck.index.commit.docs", 1000);
+    private long indexCommitInterval = Long.getLong("scape.tck.index.commit.ms", 1000L);
+    private IndexBackend indexBackend = IndexBackend.valueOf(System.getProperty("scape.tck.index.backend", "mmap").toUpperCase());
+    private int indexRebuildThreads = Integer.getInteger("scape.tck.index.rebuild.threads", Runtime.getRuntime().availableProcessors());
+    private int entityListFetchThreads = Integer.getInteger("scape.tck.entitylist.threads", 8);
+    private int bulkIngestWorkers = Integer.getInteger("scape.tck.bulk.workers", Runtime.getRuntime().availableProcessors());
+    private int bulkIngestBatchSize = Integer.getInteger("scape.tck.bulk.batch", 500);
+    private boolean streamingIngest = Boolean.getBoolean("scape.tck.ingest.streaming");
+    private String datastreamSchemes = System.getProperty("scape.tck.datastreams.schemes", "");
+    private String datastreamBaseDirectory = System.getProperty("scape.tck.datastreams.basedir");
+    private boolean deltaVersions = Boolean.getBoolean("scape.tck.storage.delta");
+    private int snapshotInterval = Integer.getInteger("scape.tck.storage.snapshot", 10);
+    private boolean compressXML = Boolean.getBoolean("scape.tck.storage.gzip");
+    private int shardLevels = Integer.getInteger("scape.tck.storage.shard.levels", 2);
+    private int shardWidth = Integer.getInteger("scape.tck.storage.shard.width", 2);
+    private int entityLockStripes = Integer.getInteger("scape.tck.locks.stripes", 1024);
+    private int requestThreads = Integer.getInteger("scape.tck.dispatch.threads", 32);
+    private int requestQueueSize = Integer.getInteger("scape.tck.dispatch.queue", 256);
+    private int searchRequestLimit = Integer.getInteger("scape.tck.dispatch.limit.search", 8);
+    private int bulkRequestLimit = Integer.getInteger("scape.tck.dispatch.limit.bulk", 2);
+    private Durability durability = Durability.valueOf(System.getProperty("scape.tck.storage.durability", "fsync").toUpperCase());
+    private int syncThreads = Integer.getInteger("scape.tck.storage.sync.threads", 8);
+
+    public int getAsyncIngestWorkers() {
+        return asyncIngestWorkers;
+    }
+
+    public void setAsyncIngestWorkers(int asyncIngestWorkers) {
+        if (asyncIngestWorkers < 1) {
+            throw new IllegalArgumentException("at least one async ingest worker is required");
+        }
+        this.asyncIngestWorkers = asyncIngestWorkers;
+    }
+
+    public long getEntityCacheSize() {
+        return entityCacheSize;
+    }
+
+    public void setEntityCacheSize(long entityCacheSize) {
+        this.entityCacheSize = entityCacheSize;
+    }
+
+    public int getIndexCommitBatchSize() {
+        return indexCommitBatchSize;
+    }
+
+    public void setIndexCommitBatchSize(int indexCommitBatchSize) {
+        this.indexCommitBatchSize = indexCommitBatchSize;
+    }
+
+    public long getIndexCommitInterval() {
+        return indexCommitInterval;
+    }
+
+    public void setIndexCommitInterval(long indexCommitInterval) {
+        this.indexCommitInterval = indexCommitInterval;
+    }
+
+    public IndexBackend getIndexBackend() {
+        return indexBackend;
+    }
+
+    public void setIndexBackend(IndexBackend indexBackend) {
+        this.indexBackend = indexBackend;
+    }
+
+    public int getIndexRebuildThreads() {
+        return indexRebuildThreads;
+    }
+
+    public void setIndexRebuildThreads(int indexRebuildThreads) {
+        this.indexRebuildThreads = indexRebuildThreads;
+    }
+
+    public int getEntityListFetchThreads() {
+        return entityListFetchThreads;
+    }
+
+    public void setEntityListFetchThreads(int entityListFetchThreads) {
+        if (entityListFetchThreads < 1) {
+            throw new IllegalArgumentException("at least one entity list fetch thread is required");
+        }
+        this.entityListFetchThreads = entityListFetchThreads;
+    }
+
+    public int getBulkIngestWorkers() {
+        return bulkIngestWorkers;
+    }
+
+    public void setBulkIngestWorkers(int bulkIngestWorkers) {
+        if (bulkIngestWorkers < 1) {
+            throw new IllegalArgumentException("at least one bulk ingest worker is required");
+        }
+        this.bulkIngestWorkers = bulkIngestWorkers;
+    }
+
+    public int getBulkIngestBatchSize() {
+        return bulkIngestBatchSize;
+    }
+
+    public void setBulkIngestBatchSize(int bulkIngestBatchSize) {
+        if (bulkIngestBatchSize < 1) {
+            throw new IllegalArgumentException("the bulk ingest batch size has to be positive");
+        }
+        this.bulkIngestBatchSize = bulkIngestBatchSize;
+    }
+
+    public boolean isStreamingIngest() {
+        return streamingIngest;
+    }
+
+    public void setStreamingIngest(boolean streamingIngest) {
+        this.streamingIngest = streamingIngest;
+    }
+
+    public String getDatastreamSchemes() {
+        return datastreamSchemes;
+    }
+
+    /**
+     * Sets the comma separated URI schemes of file references whose content
+     * is copied into the datastream store on ingest, e.g. "file,http,https".
+     * Empty by default, since the mock fetches whatever the clients reference
+     */
+    public void setDatastreamSchemes(String datastreamSchemes) {
+        this.datastreamSchemes = datastreamSchemes;
+    }
+
+    public String getDatastreamBaseDirectory() {
+        return datastreamBaseDirectory;
+    }
+
+    /**
+     * Sets the directory <code>file:</code> references have to point into to
+     * be fetched. Without it no <code>file:</code> reference is fetched, so
+     * clients can't read arbitrary files of the host
+     */
+    public void setDatastreamBaseDirectory(String datastreamBaseDirectory) {
+        this.datastreamBaseDirectory = datastreamBaseDirectory;
+    }
+
+    public boolean isDeltaVersions() {
+        return deltaVersions;
+    }
+
+    public void setDeltaVersions(boolean deltaVersions) {
+        this.deltaVersions = deltaVersions;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("the snapshot interval has to be positive");
+        }
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public boolean isCompressXML() {
+        return compressXML;
+    }
+
+    public void setCompressXML(boolean compressXML) {
+        this.compressXML = compressXML;
+    }
+
+    public int getShardLevels() {
+        return shardLevels;
+    }
+
+    public void setShardLevels(int shardLevels) {
+        this.shardLevels = shardLevels;
+    }
+
+    public int getShardWidth() {
+        return shardWidth;
+    }
+
+    /**
+     * Sets the number of hex digits naming the shard directories of one level,
+     * i.e. a width of 2 gives a fan-out of 256
+     */
+    public void setShardWidth(int shardWidth) {
+        this.shardWidth = shardWidth;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public int getSyncThreads() {
+        return syncThreads;
+    }
+
+    /**
+     * Sets the number of files of a group sync batch which are forced to disk
+     * in parallel
+     */
+    public void setSyncThreads(int syncThreads) {
+        if (syncThreads < 1) {
+            throw new IllegalArgumentException("at least one sync thread is required");
+        }
+        this.syncThreads = syncThreads;
+    }
+
+    public int getEntityLockStripes() {
+        return entityLockStripes;
+    }
+
+    public void setEntityLockStripes(int entityLockStripes) {
+        if (entityLockStripes < 1) {
+            throw new IllegalArgumentException("at least one lock stripe is needed");
+        }
+        this.entityLockStripes = entityLockStripes;
+    }
+
+    public int getRequestThreads() {
+        return requestThreads;
+    }
+
+    /**
+     * Sets the number of threads handling requests, 0 handles them on the
+     * threads of the HTTP server without any limits
+     */
+    public void setRequestThreads(int requestThreads) {
+        if (requestThreads < 0) {
+            throw new IllegalArgumentException("the number of request threads can't be negative");
+        }
+        this.requestThreads = requestThreads;
+    }
+
+    public int getRequestQueueSize() {
+        return requestQueueSize;
+    }
+
+    public void setRequestQueueSize(int requestQueueSize) {
+        if (requestQueueSize < 0) {
+            throw new IllegalArgumentException("the request queue size can't be negative");
+        }
+        this.requestQueueSize = requestQueueSize;
+    }
+
+    public int getSearchRequestLimit() {
+        return searchRequestLimit;
+    }
+
+    public void setSearchRequestLimit(int searchRequestLimit) {
+        if (searchRequestLimit < 1) {
+            throw new IllegalArgumentException("at least one search request has to be allowed");
+        }
+        this.searchRequestLimit = searchRequestLimit;
+    }
+
+    public int getBulkRequestLimit() {
+        return bulkRequestLimit;
+    }
+
+    public void setBulkRequestLimit(int bulkRequestLimit) {
+        if (bulkRequestLimit < 1) {
+            throw new IllegalArgumentException("at least one bulk request has to be allowed");
+        }
+        this.bulkRequestLimit = bulkRequestLimit;
+    }
+}
@@ -1,25 +1,57 @@
 package eu.scapeproject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.SerializationException;
+import org.apache.lucene.queryParser.ParseException;
 import org.purl.dc.elements._1.ElementContainer;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
@@ -27,6 +59,8 @@ import org.simpleframework.http.core.Container;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.scapeproject.EntityCache.CachedEntity;
+import eu.scapeproject.LuceneIndex.SearchResult;
 import eu.scapeproject.model.BitStream;
 import eu.scapeproject.model.File;
 import eu.scapeproject.model.Identifier;
@@ -36,101 +70,393 @@ import eu.scapeproject.model.LifecycleState.State;
 import eu.scapeproject.model.Representation;
 import eu.scapeproject.model.VersionList;
 import eu.scapeproject.util.ONBConverter;
-import eu.scapeproject.util.ScapeMarshaller;
 import gov.loc.marc21.slim.RecordType;
 
 public class MockContainer implements Container {
 
     private static final Logger LOG = LoggerFactory.getLogger(MockContainer.class);
+    private static final int SRU_DEFAULT_RECORDS = 10;
+    private static final int SRU_MAX_RECORDS = 1000;
+    /** the last record a SRU request may ask for, deeper pages get more expensive */
+    private static final int SRU_MAX_WINDOW = 10000;
+
+    private enum Endpoint {
+        RETRIEVE_ENTITY, RETRIEVE_METADATA, RETRIEVE_REPRESENTATION, RETRIEVE_VERSION_LIST, ENTITY_SRU, REPRESENTATION_SRU,
+        RETRIEVE_FILE, RETRIEVE_FILE_CONTENT, RETRIEVE_BITSTREAM, RETRIEVE_LIFECYCLE_STATE, INGEST_ASYNC, INGEST_BULK, INGEST,
+        RETRIEVE_ENTITY_LIST, UPDATE_ENTITY, UPDATE_REPRESENTATION, UPDATE_METADATA
+    }
+
+    /** the connector API, path parameters are parsed once while routing */
+    private static final Router<Endpoint> ROUTES = new Router<Endpoint>()
+            .add("GET", "/entity/{id}", Endpoint.RETRIEVE_ENTITY)
+            .add("GET", "/entity/{version}/{id}", Endpoint.RETRIEVE_ENTITY)
+            .add("GET", "/metadata/{id}", Endpoint.RETRIEVE_METADATA)
+            .add("GET", "/metadata/{version}/{id}", Endpoint.RETRIEVE_METADATA)
+            .add("GET", "/representation/{id}", Endpoint.RETRIEVE_REPRESENTATION)
+            .add("GET", "/representation/{version}/{id}", Endpoint.RETRIEVE_REPRESENTATION)
+            .add("GET", "/entity-version-list/{id}", Endpoint.RETRIEVE_VERSION_LIST)
+            .add("GET", "/sru/entities", Endpoint.ENTITY_SRU)
+            .add("GET", "/sru/representations", Endpoint.REPRESENTATION_SRU)
+            .add("GET", "/file/{id}", Endpoint.RETRIEVE_FILE)
+            .add("GET", "/file/{version}/{id}", Endpoint.RETRIEVE_FILE)
+            .add("GET", "/file-content/{id}", Endpoint.RETRIEVE_FILE_CONTENT)
+            .add("GET", "/bitstream/{id}", Endpoint.RETRIEVE_BITSTREAM)
+            .add("GET", "/bitstream/{version}/{id}", Endpoint.RETRIEVE_BITSTREAM)
+            .add("GET", "/lifecycle/{id}", Endpoint.RETRIEVE_LIFECYCLE_STATE)
+            .add("GET", "/lifecycle/{version}/{id}", Endpoint.RETRIEVE_LIFECYCLE_STATE)
+            .add("POST", "/entity-async", Endpoint.INGEST_ASYNC)
+            .add("POST", "/entity-bulk", Endpoint.INGEST_BULK)
+            .add("POST", "/entity", Endpoint.INGEST)
+            .add("POST", "/entity-list", Endpoint.RETRIEVE_ENTITY_LIST)
+            .add("PUT", "/entity/{id}", Endpoint.UPDATE_ENTITY)
+            .add("PUT", "/representation/{id}", Endpoint.UPDATE_REPRESENTATION)
+            .add("PUT", "/metadata/{id}", Endpoint.UPDATE_METADATA);
 
     private final PosixStorage storage;
     private final LuceneIndex index;
     private final int asyncIngestDelay = 1000;
-    private final Map<String, Object> technicalMetadata = new HashMap<String, Object>();
-    private final Map<String, Object> sourceMetadata = new HashMap<String, Object>();
-    private final Map<String, Object> provenanceMetadata = new HashMap<String, Object>();
-    private final Map<String, Object> rightsMetadata = new HashMap<String, Object>();
-    private final Map<String, Object> descriptiveMetadata = new HashMap<String, Object>();
-    private final Map<String, String> fileIdMap = new HashMap<String, String>();
-    private final Map<String, String> bitstreamIdMap = new HashMap<String, String>();
-    private final Map<String, String> representationIdMap = new HashMap<String, String>();
-    private final Map<Long, Object> asyncIngestMap = new HashMap<Long, Object>();
+    private final ConcurrentMap<String, Object> technicalMetadata = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> sourceMetadata = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> provenanceMetadata = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> rightsMetadata = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> descriptiveMetadata = new ConcurrentHashMap<String, Object>();
+    private final IdRegistry idRegistry;
+    private final DelayQueue<AsyncIngest> asyncIngestQueue = new DelayQueue<AsyncIngest>();
+    private final ConcurrentMap<String, AsyncIngest> pendingIngests = new ConcurrentHashMap<String, AsyncIngest>();
     private final AsyncIngester asyncIngester = new AsyncIngester();
+    private final Random random = new Random();
     private final int port;
-    private final ScapeMarshaller marshaller;
+    private final ThreadLocalMarshaller marshaller;
+    private final ExecutorService asyncIngestWorkers;
+    private final ExecutorService entityListWorkers;
+    private final int entityListWindow;
+    private final ExecutorService bulkIngestWorkers;
+    private final RequestDispatcher<Endpoint> dispatcher;
+    private final int bulkIngestBatchSize;
+    private final boolean streamingIngest;
+    private final StreamingEntityParser streamingParser;
+    private final Set<String> datastreamSchemes = new HashSet<String>();
+    private final String datastreamBaseDirectory;
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory xmlEventFactory = XMLEventFactory.newInstance();
+    private final EntityCache entityCache;
+    private final EntityLocks entityLocks;
 
     private Thread asyncIngesterThread = new Thread();
 
-    public MockContainer(String path, int port) throws JAXBException {
-        this.storage = new PosixStorage(path);
-        this.index = new LuceneIndex();
+    public MockContainer(String path, int port) throws JAXBException, IOException {
+        this(path, port, new MockConfiguration());
+    }
+
+    public MockContainer(String path, int port, MockConfiguration config) throws JAXBException, IOException {
+        this.storage = new PosixStorage(path, config);
+        this.idRegistry = new IdRegistry(path + "/registry", config.getDurability());
+        this.index = new LuceneIndex(path + "/index", config);
         this.port = port;
-        this.marshaller = ScapeMarshaller.newInstance();
+        this.marshaller = new ThreadLocalMarshaller();
+        this.entityCache = new EntityCache(config.getEntityCacheSize());
+        this.entityLocks = new EntityLocks(config.getEntityLockStripes());
+        this.recoverIndex(config.getIndexRebuildThreads());
+        this.asyncIngestWorkers = Executors.newFixedThreadPool(config.getAsyncIngestWorkers(), daemonThreads("async-ingest-"));
+        this.entityListWindow = config.getEntityListFetchThreads();
+        this.entityListWorkers = Executors.newFixedThreadPool(entityListWindow, daemonThreads("entity-list-"));
+        this.bulkIngestBatchSize = config.getBulkIngestBatchSize();
+        this.streamingIngest = config.isStreamingIngest();
+        this.streamingParser = new StreamingEntityParser();
+        this.datastreamBaseDirectory = (config.getDatastreamBaseDirectory() == null) ? null
+                : new java.io.File(config.getDatastreamBaseDirectory()).getCanonicalPath() + java.io.File.separator;
+        for (String scheme : config.getDatastreamSchemes().split(",")) {
+            if (scheme.trim().length() > 0) {
+                this.datastreamSchemes.add(scheme.trim().toLowerCase());
+            }
+        }
+        this.bulkIngestWorkers = Executors.newFixedThreadPool(config.getBulkIngestWorkers(), daemonThreads("bulk-ingest-"));
+        this.dispatcher = new RequestDispatcher<Endpoint>(config.getRequestThreads(), config.getRequestQueueSize(), daemonThreads("request-"))
+                .limit(config.getSearchRequestLimit(), Endpoint.ENTITY_SRU, Endpoint.REPRESENTATION_SRU)
+                .limit(config.getBulkRequestLimit(), Endpoint.INGEST_BULK, Endpoint.RETRIEVE_ENTITY_LIST);
+        this.xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+    }
 
-        
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Reindexes all stored entities in parallel if the search index doesn't
+     * match the storage, i.e. it has not been closed cleanly when the mock went
+     * down or it is missing entities
+     */
+    private void recoverIndex(int threads) throws IOException {
+        List<String> ids = storage.getEntityIds();
+        if (!index.isStale() && ids.size() == index.getEntityCount()) {
+            return;
+        }
+        LOG.info("rebuilding search index for " + ids.size() + " entities");
+        long start = System.currentTimeMillis();
+        index.clear();
+        ExecutorService rebuilders = Executors.newFixedThreadPool(threads);
+        for (final String id : ids) {
+            rebuilders.execute(new Runnable() {
+                public void run() {
+                    try {
+                        index.addEntity(marshaller.deserialize(IntellectualEntity.class,
+                                new ByteArrayInputStream(storage.getXML(id))));
+                    } catch (Exception e) {
+                        LOG.error("unable to reindex entity " + id, e);
+                    }
+                }
+            });
+        }
+        rebuilders.shutdown();
+        try {
+            rebuilders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while rebuilding the search index");
+        }
+        index.commit();
+        LOG.info("rebuilt search index in " + (System.currentTimeMillis() - start) + " ms");
     }
 
     public void close() throws Exception {
+        this.dispatcher.shutdown(10, TimeUnit.SECONDS);
         this.asyncIngester.stop();
+        this.asyncIngesterThread.interrupt();
         this.asyncIngesterThread.join();
+        this.asyncIngestWorkers.shutdown();
+        this.asyncIngestWorkers.awaitTermination(10, TimeUnit.SECONDS);
+        this.entityListWorkers.shutdown();
+        this.bulkIngestWorkers.shutdown();
+        this.bulkIngestWorkers.awaitTermination(10, TimeUnit.SECONDS);
         this.purgeStorage();
+        this.storage.close();
+        this.idRegistry.close();
         this.index.close();
     }
 
-    private Object getBitStream(String bsId, IntellectualEntity entity) {
-        for (Representation r : entity.getRepresentations()) {
-            for (File f : r.getFiles()) {
-                if (f.getBitStreams() != null) {
-                    for (BitStream bs : f.getBitStreams()) {
-                        if (bs.getIdentifier().getValue().equals(bsId)) {
-                            return bs;
-                        }
-                    }
-                }
+    public AsyncIngester getAsyncIngester() {
+        return asyncIngester;
+    }
+
+    public EntityCache getEntityCache() {
+        return entityCache;
+    }
+
+    public RequestDispatcher<?> getDispatcher() {
+        return dispatcher;
+    }
+
+    public EntityLocks getEntityLocks() {
+        return entityLocks;
+    }
+
+    public PosixStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Streams a stored entity version to the client without copying it onto
+     * the heap. Versions stored compressed are sent as they are to clients
+     * accepting gzip, and decompressed on the fly for others. Clients holding
+     * the version already get a 304 without the file being opened, and byte
+     * ranges of versions stored as files are read from the file positionally
+     */
+    private void sendXML(String id, Integer version, Request req, Response resp) throws Exception {
+        if (id == null) {
+            throw new FileNotFoundException("No entity id given");
+        }
+        // pin the latest version, so the validators match the content sent
+        int v = (version == null) ? storage.getLatestVersionNumber(id) : version;
+        resp.set("Vary", "Accept-Encoding");
+        boolean gzip = acceptsGzip(req) && storage.isStoredCompressed(id, v);
+        long modified = storage.getLastModified(id, v);
+        // the gzip encoded bytes differ from the plain ones, so they need their own strong validator
+        String etag = "\"" + v + "-" + Long.toHexString(modified) + (gzip ? "-gz\"" : "\"");
+        if (notModified(req, resp, etag, modified)) {
+            return;
+        }
+        FileChannel channel = gzip ? storage.openCompressedXML(id, v) : null;
+        if (channel != null) {
+            resp.set("Content-Encoding", "gzip");
+        } else {
+            channel = storage.openXML(id, v);
+        }
+        if (channel == null) {
+            // deltas and compressed versions are decoded while sending them, so they're always sent whole
+            InputStream in = storage.readXML(id, v);
+            try {
+                resp.setCode(200);
+                resp.set("Content-Type", "text/xml");
+                IOUtils.copy(in, resp.getOutputStream());
+            } finally {
+                in.close();
             }
+            return;
+        }
+        try {
+            ByteRanges.send(channel, "text/xml", etag, req, resp);
+        } finally {
+            channel.close();
         }
-        return null;
     }
 
-    private File getFile(String id, IntellectualEntity entity) {
-        for (Representation r : entity.getRepresentations()) {
-            for (File f : r.getFiles()) {
-                if (f.getIdentifier().getValue().equals(id)) {
-                    return f;
+    /**
+     * Sets the validators of a resource and answers 304 if the client's copy
+     * is still valid. If-None-Match takes precedence over If-Modified-Since
+     *
+     * @return true if the response has been completed with 304
+     */
+    private static boolean notModified(Request req, Response resp, String etag, long lastModified) {
+        resp.set("ETag", etag);
+        resp.setDate("Last-Modified", lastModified);
+        String ifNoneMatch = req.getValue("If-None-Match");
+        boolean match = false;
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    match = true;
+                    break;
                 }
             }
+        } else {
+            long since = req.getDate("If-Modified-Since");
+            // HTTP dates have a resolution of seconds
+            match = since >= 0 && lastModified / 1000 <= since / 1000;
         }
-        return null;
+        if (match) {
+            resp.setCode(304);
+        }
+        return match;
     }
 
-    private Integer getVersionFromPath(String path) {
-        // check for a version parameter or use the latest version
-        Matcher m = Pattern.compile("/\\d*/").matcher(path);
-        if (m.find()) {
-            return Integer.parseInt(path.substring(m.start() + 1, m.end() - 1));
-        } else {
-            return null;
+    private static boolean acceptsGzip(Request req) {
+        String accept = req.getValue("Accept-Encoding");
+        if (accept == null) {
+            return false;
         }
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
     }
 
-    public void handle(Request req, Response resp) {
-        try {
-            if (req.getMethod().equals("POST")) {
-                handlePost(req, resp);
-            } else if (req.getMethod().equals("DELETE")) {
-
-            } else if (req.getMethod().equals("PUT")) {
-                handlePut(req, resp);
-            } else if (req.getMethod().equals("GET")) {
-                handleGet(req, resp);
-            } else {
-                LOG.error("Unable to handle method of type " + req.getMethod());
+
+    /**
+     * Routes a request and hands it to the dispatcher. Requests are answered
+     * with 503 if the dispatcher is saturated
+     */
+    public void handle(final Request req, final Response resp) {
+        String contextPath = req.getPath().getPath();
+        LOG.info("-- HTTP/1.1 " + req.getMethod() + " " + contextPath + " from " + req.getClientAddress().getAddress().getHostAddress());
+        final Router.Match<Endpoint> route = ROUTES.find(req.getMethod(), contextPath);
+        if (route == null) {
+            sendStatus(resp, 404);
+            return;
+        }
+        boolean accepted = dispatcher.execute(route.getTarget(), new Runnable() {
+            public void run() {
+                dispatch(route, req, resp);
             }
+        });
+        if (!accepted) {
+            LOG.warn("rejected " + req.getMethod() + " " + contextPath + ", too many concurrent requests");
+            resp.set("Retry-After", "1");
+            sendStatus(resp, 503);
+        }
+    }
+
+    private static void sendStatus(Response resp, int code) {
+        resp.setCode(code);
+        try {
+            resp.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void dispatch(Router.Match<Endpoint> route, Request req, Response resp) {
+        try {
+            switch (route.getTarget()) {
+            case RETRIEVE_ENTITY:
+                handleRetrieveEntity(route, req, resp);
+                break;
+            case RETRIEVE_METADATA:
+                handleRetrieveMetadata(req, resp);
+                break;
+            case RETRIEVE_REPRESENTATION:
+                handleRetrieveRepresentation(route, req, resp);
+                break;
+            case RETRIEVE_VERSION_LIST:
+                handleRetrieveVersionList(route, req, resp);
+                break;
+            case ENTITY_SRU:
+                handleEntitySRU(req, resp);
+                break;
+            case REPRESENTATION_SRU:
+                handleRepresentationSRU(req, resp);
+                break;
+            case RETRIEVE_FILE:
+                handleRetrieveFile(route, req, resp);
+                break;
+            case RETRIEVE_FILE_CONTENT:
+                handleRetrieveFileContent(route, req, resp);
+                break;
+            case RETRIEVE_BITSTREAM:
+                handleRetrieveBitStream(route, req, resp);
+                break;
+            case RETRIEVE_LIFECYCLE_STATE:
+                handleRetrieveLifecycleState(route, req, resp);
+                break;
+            case INGEST_ASYNC:
+                handleAsyncIngest(req, resp, 200);
+                break;
+            case INGEST_BULK:
+                handleBulkIngest(req, resp);
+                break;
+            case INGEST:
+                handleIngest(req, resp, 201);
+                break;
+            case RETRIEVE_ENTITY_LIST:
+                handleRetrieveEntityList(req, resp);
+                break;
+            case UPDATE_ENTITY:
+                handleUpdateEntity(req, resp);
+                break;
+            case UPDATE_REPRESENTATION:
+                handleUpdateRepresentation(req, resp);
+                break;
+            case UPDATE_METADATA:
+                handleUpdateMetadata(req, resp);
+                break;
+            }
+        } catch (Exception e) {
+            LOG.error("unable to handle " + req.getMethod() + " " + req.getPath().getPath(), e);
+            // once the headers are out the client can only tell from the truncated body
+            if (!resp.isCommitted()) {
+                resp.setCode(500);
+            }
+        } finally {
+            try {
+                resp.close();
+            } catch (IOException e) {
+                LOG.warn("unable to complete the response to " + req.getMethod() + " " + req.getPath().getPath(), e);
+            }
+        }
+    }
+
     private void handleAsyncIngest(Request req, Response resp, int okValue) throws Exception {
         // get entity from request body
         IntellectualEntity.Builder entityBuilder = new IntellectualEntity.Builder(marshaller.deserialize(
@@ -138,72 +464,250 @@ public class MockContainer implements Container {
         entityBuilder.lifecycleState(new LifecycleState("async ingest", State.INGESTING));
         IntellectualEntity entity = entityBuilder.build();
 
-        // add the entity to the async map, for later ingestion,
-        // and set the the time the ingestion should be processed by the mock
-        long time = new Date().getTime();
-        do {
-            time += new Random().nextInt(asyncIngestDelay) + 1000;
-        } while (asyncIngestMap.containsKey(time));
-        asyncIngestMap.put(time, entity);
-
         // have to check for id existence and generate some if necessary
-        if (entity.getIdentifier() == null) {
+        if (entity.getIdentifier() == null || entity.getIdentifier().getValue() == null) {
             entityBuilder.identifier(new Identifier(UUID.randomUUID().toString()));
+            entity = entityBuilder.build();
         }
 
+        // add the entity to the async queue, for later ingestion,
+        // and set the the time the ingestion should be processed by the mock
+        long time = new Date().getTime() + random.nextInt(asyncIngestDelay) + 1000;
+        AsyncIngest asyncRequest = new AsyncIngest(entity, time);
+        pendingIngests.put(entity.getIdentifier().getValue(), asyncRequest);
+        asyncIngestQueue.put(asyncRequest);
+
         // return the identity to get the lifecyclestate
         marshaller.serialize(entity.getIdentifier(), resp.getOutputStream());
         resp.setCode(okValue);
     }
 
+    /**
+     * Ingests the METS documents contained in an intellectual-entity-collection
+     * element. The documents are split off the request body with StAX and
+     * ingested by the bulk ingest workers while the parser proceeds. Versions
+     * are synced as they are written according to the configured durability,
+     * with group durability the concurrent workers share their syncs. After
+     * each batch the id registry is synced and the search index is committed
+     * once, then a line with the position, status and id of each item in the
+     * batch is written to the response
+     */
+    private void handleBulkIngest(Request req, Response resp) throws Exception {
+        XMLEventReader reader = xmlInputFactory.createXMLEventReader(req.getInputStream());
+        while (reader.hasNext() && !reader.peek().isStartElement()) {
+            reader.nextEvent();
+        }
+        if (!reader.hasNext()) {
+            resp.setCode(400);
+            return;
+        }
+        // skip the collection element
+        reader.nextEvent();
+        resp.setCode(200);
+        resp.set("Content-Type", "text/plain");
+        OutputStream out = resp.getOutputStream();
+        List<Future<BulkResult>> batch = new ArrayList<Future<BulkResult>>();
+        int position = 0;
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.peek();
+                if (event.isEndElement()) {
+                    break;
+                }
+                if (!event.isStartElement()) {
+                    reader.nextEvent();
+                    continue;
+                }
+                final byte[] xml = copyElement(reader);
+                batch.add(bulkIngestWorkers.submit(new Callable<BulkResult>() {
+                    public BulkResult call() throws Exception {
+                        return ingestBulkItem(xml);
+                    }
+                }));
+                if (batch.size() == bulkIngestBatchSize) {
+                    position = finishBatch(batch, position, out);
+                }
+            }
+            position = finishBatch(batch, position, out);
+        } catch (XMLStreamException e) {
+            LOG.warn("unable to parse bulk ingest request", e);
+            position = finishBatch(batch, position, out);
+            write(out, position + "\t400\t-\n");
+        }
+    }
+
+    /**
+     * Copies the element the reader is positioned at into a standalone document
+     */
+    private byte[] copyElement(XMLEventReader reader) throws XMLStreamException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        XMLEventWriter writer = xmlOutputFactory.createXMLEventWriter(bos, "UTF-8");
+        writer.add(xmlEventFactory.createStartDocument("UTF-8", "1.0"));
+        int depth = 0;
+        do {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+            writer.add(event);
+        } while (depth > 0);
+        writer.add(xmlEventFactory.createEndDocument());
+        writer.close();
+        return bos.toByteArray();
+    }
+
+    private BulkResult ingestBulkItem(byte[] xml) throws Exception {
+        IntellectualEntity entity;
+        try {
+            entity = marshaller.deserialize(IntellectualEntity.class, new ByteArrayInputStream(xml));
+        } catch (JAXBException e) {
+            LOG.warn("unable to deserialize bulk ingest item", e);
+            return new BulkResult(400, null);
+        }
+        if (entity.getIdentifier() == null || entity.getIdentifier().getValue() == null) {
+            entity = new IntellectualEntity.Builder(entity).identifier(new Identifier(UUID.randomUUID().toString())).build();
+        }
+        ingestEntity(entity);
+        index.addEntity(entity);
+        return new BulkResult(201, entity.getIdentifier().getValue());
+    }
+
+    /**
+     * Waits for the ingest of a batch, syncs the id registry and commits the
+     * index before reporting the items of the batch to the client
+     */
+    private int finishBatch(List<Future<BulkResult>> batch, int position, OutputStream out) throws Exception {
+        List<BulkResult> results = new ArrayList<BulkResult>(batch.size());
+        for (Future<BulkResult> f : batch) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                LOG.error("unable to ingest bulk item", e.getCause());
+                results.add(new BulkResult(500, null));
+            }
+        }
+        batch.clear();
+        idRegistry.sync();
+        index.commit();
+        StringBuilder lines = new StringBuilder();
+        for (BulkResult result : results) {
+            lines.append(position++).append('\t').append(result.status).append('\t')
+                    .append(result.id == null ? "-" : result.id).append('\n');
+        }
+        write(out, lines.toString());
+        out.flush();
+        return position;
+    }
+
     private void handleEntitySRU(Request req, Response resp) throws Exception {
-        // String term = req.getParameter("query");
-        // List<MetsDocument> entities = new ArrayList<MetsDocument>();
-        // for (String id : index.searchEntity(term)) {
-        // byte[] xml = storage.getXML(id);
-        // entities.add((MetsDocument)
-        // marshaller.getJaxbUnmarshaller().unmarshal(new
-        // ByteArrayInputStream(xml)));
-        // }
-        // IntellectualEntityCollection coll = new
-        // IntellectualEntityCollection(entities);
-        // marshaller.getJaxbMarshaller().marshal(coll, resp.getOutputStream());
-        // resp.setCode(200);
+        handleSRU(req, resp, false);
     }
 
-    private void handleGet(Request req, Response resp) throws IOException {
-        String contextPath = req.getPath().getPath();
-        LOG.info("-- HTTP/1.1 GET " + contextPath + " from " + req.getClientAddress().getAddress().getHostAddress());
+    /**
+     * Answers a SRU searchRetrieve request. The stored METS documents of the
+     * requested page of hits are copied into the response one by one, so no
+     * entity has to be unmarshalled or held in memory. Entities with several
+     * matching representations are returned once. Pages reaching past
+     * {@link #SRU_MAX_WINDOW} records are refused, since the hits up to the
+     * page's end are collected for every request
+     */
+    private void handleSRU(Request req, Response resp, boolean representations) throws Exception {
+        String term = req.getParameter("query");
+        int startRecord;
+        int maximumRecords;
         try {
-            if (contextPath.startsWith("/entity/")) {
-                handleRetrieveEntity(req, resp);
-            } else if (contextPath.startsWith("/metadata/")) {
-                handleRetrieveMetadata(req, resp);
-            } else if (contextPath.startsWith("/representation/")) {
-                handleRetrieveRepresentation(req, resp);
-            } else if (contextPath.startsWith("/entity-version-list/")) {
-                handleRetrieveVersionList(req, resp);
-            } else if (contextPath.startsWith("/sru/entities")) {
-                handleEntitySRU(req, resp);
-            } else if (contextPath.startsWith("/sru/representations")) {
-                handleRepresentationSRU(req, resp);
-            } else if (contextPath.startsWith("/file/")) {
-                handleRetrieveFile(req, resp);
-            } else if (contextPath.startsWith("/bitstream/")) {
-                handleRetrieveBitStream(req, resp);
-            } else if (contextPath.startsWith("/lifecycle/")) {
-                handleRetrieveLifecycleState(req, resp);
-            } else {
-                resp.setCode(404);
+            startRecord = getIntParameter(req, "startRecord", 1);
+            maximumRecords = Math.min(getIntParameter(req, "maximumRecords", SRU_DEFAULT_RECORDS), SRU_MAX_RECORDS);
+        } catch (NumberFormatException e) {
+            resp.setCode(400);
+            return;
+        }
+        if (term == null || startRecord < 1 || maximumRecords < 0 || startRecord - 1L + maximumRecords > SRU_MAX_WINDOW) {
+            resp.setCode(400);
+            return;
+        }
+        SearchResult result;
+        try {
+            result = representations
+                    ? index.searchRepresentation(term, startRecord - 1, maximumRecords)
+                    : index.searchEntity(term, startRecord - 1, maximumRecords);
+        } catch (ParseException e) {
+            LOG.debug("unable to parse query " + term, e);
+            resp.setCode(400);
+            return;
+        }
+
+        resp.setCode(200);
+        resp.set("Content-Type", "text/xml");
+        OutputStream out = resp.getOutputStream();
+        write(out, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<srw:searchRetrieveResponse xmlns:srw=\"http://www.loc.gov/zing/srw/\">"
+                + "<srw:version>1.2</srw:version>"
+                + "<srw:numberOfRecords>" + result.getTotalHits() + "</srw:numberOfRecords>"
+                + "<srw:records>");
+        int position = startRecord;
+        // representation hits come grouped by their entity, so both searches yield entity ids
+        for (String entityId : result.getIds()) {
+            if (storage.exists(entityId, null)) {
+                write(out, "<srw:record><srw:recordSchema>http://www.loc.gov/METS/</srw:recordSchema>"
+                        + "<srw:recordPacking>xml</srw:recordPacking><srw:recordData>");
+                copyWithoutProlog(entityId, out);
+                write(out, "</srw:recordData><srw:recordPosition>" + position + "</srw:recordPosition></srw:record>");
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            position++;
+        }
+        write(out, "</srw:records>");
+        if (position <= result.getTotalHits()) {
+            write(out, "<srw:nextRecordPosition>" + position + "</srw:nextRecordPosition>");
+        }
+        write(out, "</srw:searchRetrieveResponse>");
+    }
+
+    private static int getIntParameter(Request req, String name, int defaultValue) throws IOException {
+        String value = req.getParameter(name);
+        return (value == null || value.length() == 0) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("UTF-8"));
+    }
+
+    /**
+     * Copies the latest stored version of an entity to the stream, leaving out
+     * the XML declaration so the document can be embedded in another one
+     */
+    private void copyWithoutProlog(String id, OutputStream out) throws Exception {
+        InputStream in = storage.readXML(id, null);
+        try {
+            copyWithoutProlog(in, out);
         } finally {
-            resp.close();
+            in.close();
         }
     }
 
+    private static void copyWithoutProlog(InputStream source, OutputStream out) throws IOException {
+        InputStream in = new BufferedInputStream(source);
+        byte[] start = new byte[5];
+        in.mark(start.length);
+        if (IOUtils.read(in, start) == start.length && "<?xml".equals(new String(start, "US-ASCII"))) {
+            int previous = 0;
+            int c;
+            while ((c = in.read()) != -1 && !(previous == '?' && c == '>')) {
+                previous = c;
+            }
+        } else {
+            in.reset();
+        }
+        IOUtils.copy(in, out);
+    }
+
     private void handleIngest(Request req, Response resp, int okValue) throws Exception {
+        if (streamingIngest) {
+            handleStreamingIngest(req, resp, okValue);
+            return;
+        }
         try {
             IntellectualEntity ent = marshaller.deserialize(
                     IntellectualEntity.class, req.getInputStream());
@@ -218,6 +722,7 @@ public class MockContainer implements Container {
             }
 
             ingestEntity(entity);
+            idRegistry.sync();
             index.addEntity(entity);
 
             // generate the server response with the ingested entity's id
@@ -230,84 +735,82 @@ public class MockContainer implements Container {
         }
     }
 
-    private void handlePost(Request req, Response resp) throws IOException {
-        String contextPath = req.getPath().getPath();
-        LOG.info("-- HTTP/1.1 POST " + contextPath + " from " + req.getClientAddress().getAddress().getHostAddress());
+    /**
+     * Ingests an entity without unmarshalling it. The posted METS document is
+     * rewritten by the {@link StreamingEntityParser} into a temporary file,
+     * which is then moved in place as the new version
+     */
+    private void handleStreamingIngest(Request req, Response resp, int okValue) throws Exception {
+        java.io.File tmp = storage.createTempFile();
+        StreamingEntityParser.Result result = null;
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
         try {
-            if (contextPath.startsWith("/entity-async")) {
-                handleAsyncIngest(req, resp, 200);
-            } else if (contextPath.equals("/entity")) {
-                handleIngest(req, resp, 201);
-            } else if (contextPath.startsWith("/entity-list")) {
-                handleRetrieveEntityList(req, resp);
-            } else {
-                resp.setCode(404);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            result = streamingParser.parse(req.getInputStream(), out);
+        } catch (XMLStreamException e) {
+            LOG.warn("unable to parse posted entity", e);
         } finally {
-            resp.close();
+            out.close();
         }
-    }
-
-    private void handlePut(Request req, Response resp) throws IOException {
-        String contextPath = req.getPath().getPath();
-        LOG.info("-- HTTP/1.1 PUT " + contextPath + " from " + req.getClientAddress().getAddress().getHostAddress());
+        if (result == null) {
+            tmp.delete();
+            resp.setCode(400);
+            return;
+        }
+        String id = result.getEntityId();
+        int version;
+        Lock lock = entityLocks.lock(id);
         try {
-            if (contextPath.startsWith("/entity/")) {
-                handleUpdateEntity(req, resp);
-            } else if (contextPath.startsWith("/representation/")) {
-                handleUpdateRepresentation(req, resp);
-            } else if (contextPath.startsWith("/metadata/")) {
-                handleUpdateMetadata(req, resp);
-            } else {
-                resp.setCode(404);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            version = storage.exists(id, null) ? storage.getNewVersionNumber(id) : 1;
+            storage.saveXML(tmp, id, version);
         } finally {
-            resp.close();
+            lock.unlock();
+        }
+        entityCache.invalidate(id, version);
+        // the ids are registered only now, so a document failing halfway leaves no mappings behind
+        result.register(idRegistry);
+        // the posted state is stored as is, so the registry records the entity as ingested
+        idRegistry.append(IdRegistry.Type.LIFECYCLE, id, State.INGESTED.name());
+        for (Map.Entry<String, String> location : result.getFileLocations().entrySet()) {
+            try {
+                storeContent(location.getKey(), new URI(location.getValue()));
+            } catch (URISyntaxException e) {
+                LOG.warn("unable to fetch content of file " + location.getKey() + " from " + location.getValue(), e);
+            }
+        }
+        for (String representationId : result.getRepresentationIds()) {
+            index.addRepresentation(id, representationId, result.getRepresentationTitles().get(representationId));
         }
+        idRegistry.sync();
+        index.addEntity(id, result.getTitles(), result.getDescriptions());
 
+        resp.setCode(okValue);
+        resp.set("Content-Type", "text/plain");
+        write(resp.getOutputStream(), id);
     }
 
     private void handleRepresentationSRU(Request req, Response resp) throws Exception {
-        // String term = req.getParameter("query");
-        // List<MetsDocument> entities = new ArrayList<MetsDocument>();
-        // for (String id : index.searchRepresentation(term)) {
-        // byte[] xml = storage.getXML(representationIdMap.get(id));
-        // entities.add((MetsDocument)
-        // marshaller.getJaxbUnmarshaller().unmarshal(new
-        // ByteArrayInputStream(xml)));
-        // }
-        // IntellectualEntityCollection coll = new
-        // IntellectualEntityCollection(entities);
-        // marshaller.getJaxbMarshaller().marshal(coll, resp.getOutputStream());
-        // resp.setCode(200);
+        handleSRU(req, resp, true);
     }
 
-    private void handleRetrieveBitStream(Request req, Response resp) throws Exception {
-        String bsId = req.getPath().getPath().substring(11);
-        String entityId = bitstreamIdMap.get(bsId);
+    private void handleRetrieveBitStream(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
+        String bsId = route.getId();
+        String entityId = idRegistry.get(IdRegistry.Type.BITSTREAM, bsId);
         if (entityId == null) {
             resp.setCode(404);
         } else {
-            byte[] blob = storage.getXML(entityId, getVersionFromPath(req.getPath().getPath()));
-            IntellectualEntity entity = marshaller.deserialize(IntellectualEntity.class,
-                    new ByteArrayInputStream(blob));
-            marshaller.serialize(getBitStream(bsId, entity), resp.getOutputStream());
+            BitStream bs = loadEntity(entityId, route.getVersion()).getBitStream(bsId);
+            if (bs == null) {
+                resp.setCode(404);
+                return;
+            }
             resp.setCode(200);
+            marshaller.serialize(bs, resp.getOutputStream());
         }
     }
 
-    private void handleRetrieveEntity(Request req, Response resp) throws Exception {
-        String id = req.getPath().getPath().substring(req.getPath().getPath().lastIndexOf('/') + 1);
-
+    private void handleRetrieveEntity(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
         try {
-            byte[] blob = storage.getXML(id, getVersionFromPath(req.getPath().getPath()));
-            IOUtils.write(blob, resp.getOutputStream());
-            resp.setCode(200);
-            resp.close();
+            sendXML(route.getId(), route.getVersion(), req, resp);
         } catch (FileNotFoundException e) {
             resp.setCode(404);
         } finally {
@@ -315,55 +818,127 @@ public class MockContainer implements Container {
         }
     }
 
+    /**
+     * Returns the latest versions of the entities whose URIs are posted line by
+     * line. The URI list is read incrementally and at most
+     * {@link MockConfiguration#getEntityListFetchThreads()} entities are read
+     * from the storage ahead of the response, which receives the entities in
+     * request order as soon as they are available. Unknown entities are
+     * skipped
+     */
     private void handleRetrieveEntityList(Request req, Response resp) throws Exception {
-        // String[] uris = req.getContent().split("\\n");
-        // List<MetsDocument> docs = new ArrayList<MetsDocument>();
-        // for (String uri : uris) {
-        // byte[] blob = storage.getXML(uri);
-        // docs.add((MetsDocument)
-        // marshaller.getJaxbUnmarshaller().unmarshal(new
-        // ByteArrayInputStream(blob)));
-        // }
-        // IntellectualEntityCollection entities = new
-        // IntellectualEntityCollection(docs);
-        // marshaller.getJaxbMarshaller().marshal(entities,
-        // resp.getOutputStream());
-        // resp.setCode(200);
+        BufferedReader uris = new BufferedReader(new InputStreamReader(req.getInputStream(), "UTF-8"));
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        resp.setCode(200);
+        resp.set("Content-Type", "text/xml");
+        OutputStream out = resp.getOutputStream();
+        write(out, "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<scape:intellectual-entity-collection xmlns:scape=\"http://scapeproject.eu/model\">");
+        try {
+            String uri;
+            while ((uri = uris.readLine()) != null) {
+                uri = uri.trim();
+                if (uri.length() == 0) {
+                    continue;
+                }
+                final String id = uri.substring(uri.lastIndexOf('/') + 1);
+                pending.add(entityListWorkers.submit(new Callable<byte[]>() {
+                    public byte[] call() throws Exception {
+                        try {
+                            return storage.getXML(id);
+                        } catch (FileNotFoundException e) {
+                            LOG.warn("skipping unknown entity " + id + " in entity list");
+                            return null;
+                        }
+                    }
+                }));
+                if (pending.size() >= entityListWindow) {
+                    writeListEntry(pending.removeFirst(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeListEntry(pending.removeFirst(), out);
+            }
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(true);
+            }
+        }
+        write(out, "</scape:intellectual-entity-collection>");
     }
 
-    private void handleRetrieveFile(Request req, Response resp) throws Exception {
-        String fileId = req.getPath().getPath().substring(6);
-        String entityIdid = fileIdMap.get(fileId);
-        byte[] blob = storage.getXML(entityIdid, getVersionFromPath(req.getPath().getPath()));
+    private static void writeListEntry(Future<byte[]> entry, OutputStream out) throws Exception {
+        byte[] xml;
+        try {
+            xml = entry.get();
+        } catch (ExecutionException e) {
+            throw new IOException("unable to read entity from storage", e.getCause());
+        }
+        if (xml != null) {
+            copyWithoutProlog(new ByteArrayInputStream(xml), out);
+            out.flush();
+        }
+    }
+
+    private void handleRetrieveFile(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
+        String fileId = route.getId();
+        String entityIdid = idRegistry.get(IdRegistry.Type.FILE, fileId);
         if (entityIdid == null) {
             resp.setCode(404);
         } else {
-            IntellectualEntity entity = marshaller.deserialize(IntellectualEntity.class,
-                    new ByteArrayInputStream(blob));
-            marshaller.serialize(getFile(fileId, entity), resp.getOutputStream());
+            File file = loadEntity(entityIdid, route.getVersion()).getFile(fileId);
+            if (file == null) {
+                resp.setCode(404);
+                return;
+            }
             resp.setCode(200);
+            marshaller.serialize(file, resp.getOutputStream());
         }
     }
 
-    private void handleRetrieveLifecycleState(Request req, Response resp) throws Exception {
-        String id = req.getPath().getPath().substring(11);
-        Integer version = getVersionFromPath(req.getPath().getPath());
-        if (storage.exists(id, version)) {
-            IntellectualEntity entity = marshaller.deserialize(IntellectualEntity.class,
-                    new ByteArrayInputStream(storage.getXML(id, version)));
-            marshaller.serialize(entity.getLifecycleState(), resp.getOutputStream());
+    private void handleRetrieveFileContent(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
+        String fileId = route.getId();
+        String hash = idRegistry.get(IdRegistry.Type.CONTENT, fileId);
+        if (hash == null) {
+            resp.setCode(404);
             return;
         }
-        for (Entry<Long, Object> entry : asyncIngestMap.entrySet()) {
-            if (entry.getValue() instanceof IntellectualEntity) {
-                IntellectualEntity ent = (IntellectualEntity) entry.getValue();
-                if (ent.getIdentifier().getValue().equals(id)) {
-                    marshaller.serialize(ent.getLifecycleState(), resp.getOutputStream());
-                    return;
-                }
-            }
+        // the content is addressed by its digest, which makes it a strong validator
+        String etag = "\"" + hash + "\"";
+        if (notModified(req, resp, etag, storage.getDatastreamLastModified(hash))) {
+            return;
         }
+        FileChannel channel = storage.openDatastream(hash);
+        try {
+            ByteRanges.send(channel, "application/octet-stream", etag, req, resp);
+        } finally {
+            channel.close();
+        }
+    }
 
+    private void handleRetrieveLifecycleState(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
+        String id = route.getId();
+        Integer version = route.getVersion();
+        // entities waiting for async ingestion are answered from memory
+        AsyncIngest pending = pendingIngests.get(id);
+        if (pending != null && version == null) {
+            marshaller.serialize(pending.getEntity().getLifecycleState(), resp.getOutputStream());
+            resp.setCode(200);
+            return;
+        }
+        if (storage.exists(id, version)) {
+            // entities ingested by streaming keep the posted state, the actual one is in the registry
+            String recorded = idRegistry.get(IdRegistry.Type.LIFECYCLE, id);
+            LifecycleState state = (recorded != null) ? new LifecycleState("ingested", State.valueOf(recorded))
+                    : loadEntity(id, version).getEntity().getLifecycleState();
+            if (state == null) {
+                state = new LifecycleState("ingested", State.INGESTED);
+            }
+            marshaller.serialize(state, resp.getOutputStream());
+            resp.setCode(200);
+            return;
+        }
+        resp.setCode(404);
     }
 
     private void handleRetrieveMetadata(Request req, Response resp) throws Exception {
@@ -387,13 +962,9 @@ public class MockContainer implements Container {
         // }
     }
 
-    private void handleRetrieveRepresentation(Request req, Response resp) throws Exception {
-        String id = req.getPath().getPath().substring(req.getPath().getPath().lastIndexOf('/') + 1);
+    private void handleRetrieveRepresentation(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
         try {
-            byte[] blob = storage.getXML(representationIdMap.get(id), getVersionFromPath(req.getPath().getPath()));
-            IOUtils.write(blob, resp.getOutputStream());
-            resp.setCode(200);
-            resp.close();
+            sendXML(idRegistry.get(IdRegistry.Type.REPRESENTATION, route.getId()), route.getVersion(), req, resp);
         } catch (FileNotFoundException e) {
             resp.setCode(404);
         } finally {
@@ -401,9 +972,17 @@ public class MockContainer implements Container {
         }
     }
 
-    private void handleRetrieveVersionList(Request req, Response resp) throws Exception {
-         String id = req.getPath().getPath().substring(21);
+    private void handleRetrieveVersionList(Router.Match<Endpoint> route, Request req, Response resp) throws Exception {
+         String id = route.getId();
          List<String> versions = storage.getVersionList(id);
+         if (!versions.isEmpty()) {
+             // the list only changes when a version is added, and it is in ascending order
+             int latest = Integer.parseInt(versions.get(versions.size() - 1));
+             long modified = storage.getLastModified(id, latest);
+             if (notModified(req, resp, "\"list-" + latest + "-" + Long.toHexString(modified) + "\"", modified)) {
+                 return;
+             }
+         }
          Collections.sort(versions);
          VersionList versionList = new VersionList(id, versions);
          marshaller.getJaxbMarshaller().marshal(versionList, resp.getOutputStream());
@@ -440,31 +1019,48 @@ public class MockContainer implements Container {
     private void handleUpdateRepresentation(Request req, Response resp) throws Exception {
         try {
             Representation newRep = marshaller.deserialize(Representation.class, req.getInputStream());
-            byte[] blob = storage.getXML(representationIdMap.get(newRep.getIdentifier().getValue()));
-            IntellectualEntity ie = marshaller.deserialize(IntellectualEntity.class, new ByteArrayInputStream(blob));
-            List<Representation> newRepresentations = new ArrayList<Representation>(ie.getRepresentations().size());
-            for (Representation orig : ie.getRepresentations()) {
-                if (orig.getIdentifier().getValue().equals(newRep.getIdentifier().getValue())) {
-                    newRepresentations.add(newRep);
-                } else {
-                    newRepresentations.add(orig);
+            String entityId = idRegistry.get(IdRegistry.Type.REPRESENTATION, newRep.getIdentifier().getValue());
+            if (entityId == null) {
+                throw new FileNotFoundException("Unknown representation " + newRep.getIdentifier().getValue());
+            }
+            IntellectualEntity newVersion;
+            // the latest version must not change between reading and replacing it, or a concurrent update is lost
+            Lock lock = entityLocks.lock(entityId);
+            try {
+                IntellectualEntity ie = loadEntity(entityId, null).getEntity();
+                List<Representation> newRepresentations = new ArrayList<Representation>(ie.getRepresentations().size());
+                for (Representation orig : ie.getRepresentations()) {
+                    if (orig.getIdentifier().getValue().equals(newRep.getIdentifier().getValue())) {
+                        newRepresentations.add(newRep);
+                    } else {
+                        newRepresentations.add(orig);
+                    }
                 }
+                newVersion = new IntellectualEntity.Builder(ie)
+                        .representations(newRepresentations)
+                        .build();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                marshaller.serialize(newVersion, bos);
+                saveEntity(newVersion, bos.toByteArray(), storage.getNewVersionNumber(entityId));
+            } finally {
+                lock.unlock();
             }
-            IntellectualEntity newVersion = new IntellectualEntity.Builder(ie)
-                    .representations(newRepresentations)
-                    .build();
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            marshaller.serialize(newVersion, bos);
-            storage.saveXML(bos.toByteArray(), newVersion.getIdentifier().getValue(), storage.getNewVersionNumber(newVersion.getIdentifier().getValue()), false);
             LOG.debug("updated representation " + newRep.getIdentifier().getValue() + " of intellectual entity " + newVersion.getIdentifier().getValue());
-            index.addRepresentation(newRep);
+            index.addRepresentation(entityId, newRep);
             resp.setCode(200);
         } catch (Exception e) {
             resp.setCode(500);
         }
     }
 
-    private void ingestEntity(IntellectualEntity entity) throws Exception {
+    /**
+     * Assigns missing ids, records the sub resources in the id registry and
+     * stores a new version of the entity. The caller has to sync the id
+     * registry
+     *
+     * @return the version number the entity has been saved as
+     */
+    private int ingestEntity(IntellectualEntity entity) throws Exception {
         IntellectualEntity.Builder entityBuilder = new IntellectualEntity.Builder(entity);
         if (entity.getDescriptive() != null) {
             this.descriptiveMetadata.put(entity.getIdentifier().getValue(), entity.getDescriptive());
@@ -492,20 +1088,21 @@ public class MockContainer implements Container {
                                 BitStream bsCopy = new BitStream.Builder(bs)
                                         .identifier((bs.getIdentifier() == null) ? new Identifier(UUID.randomUUID().toString()) : bs.getIdentifier())
                                         .build();
-                                bitstreamIdMap.put(bsCopy.getIdentifier().getValue(), entity.getIdentifier().getValue());
+                                idRegistry.append(IdRegistry.Type.BITSTREAM, bsCopy.getIdentifier().getValue(), entity.getIdentifier().getValue());
                                 bsList.add(bsCopy);
                                 fileCopyBuilder.bitStreams(bsList);
                             }
                         }
                         File fileCopy = fileCopyBuilder.build();
-                        fileIdMap.put(fileCopy.getIdentifier().getValue(), entity.getIdentifier().getValue());                        
+                        idRegistry.append(IdRegistry.Type.FILE, fileCopy.getIdentifier().getValue(), entity.getIdentifier().getValue());
+                        storeContent(fileCopy);
                         fList.add(fileCopy);
                         repCopyBuilder.files(fList);
                     }
                 }
                 Representation repCopy = repCopyBuilder.build();
                 representationsCopy.add(repCopy);
-                representationIdMap.put(repCopy.getIdentifier().getValue(), entity.getIdentifier().getValue());
+                idRegistry.append(IdRegistry.Type.REPRESENTATION, repCopy.getIdentifier().getValue(), entity.getIdentifier().getValue());
             }
             entityBuilder.representations(representationsCopy);
         }
@@ -517,13 +1114,106 @@ public class MockContainer implements Container {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         marshaller.serialize(entity, bos);
         int version = entity.getVersionNumber();
-        if (storage.exists(entity.getIdentifier().getValue(), entity.getVersionNumber())) {
-            version = storage.getNewVersionNumber(entity.getIdentifier().getValue());
+        Lock lock = entityLocks.lock(entity.getIdentifier().getValue());
+        try {
+            if (storage.exists(entity.getIdentifier().getValue(), entity.getVersionNumber())) {
+                version = storage.getNewVersionNumber(entity.getIdentifier().getValue());
+            }
+            saveEntity(entity, bos.toByteArray(), version);
+        } finally {
+            lock.unlock();
         }
-        storage.saveXML(bos.toByteArray(), entity.getIdentifier().getValue(), version, false);
 
         // update the hashmap with the metadata references to the entities
         LOG.debug("++ adding descriptive metadata for entity " + entity.getIdentifier().getValue());
+        return version;
+    }
+
+    /**
+     * Copies the content referenced by a file into the datastream store if the
+     * URI scheme is enabled. <code>file:</code> URIs are only fetched from
+     * within the configured base directory. Refused or unreachable content is
+     * logged and skipped, the entity is ingested anyway
+     */
+    private void storeContent(File f) throws IOException {
+        storeContent(f.getIdentifier().getValue(), f.getUri());
+    }
+
+    private void storeContent(String fileId, URI uri) throws IOException {
+        if (uri == null || uri.getScheme() == null || !datastreamSchemes.contains(uri.getScheme().toLowerCase())) {
+            return;
+        }
+        InputStream in;
+        try {
+            if (uri.getScheme().equalsIgnoreCase("file")) {
+                java.io.File local = allowedLocalFile(uri);
+                if (local == null) {
+                    LOG.warn("refused to fetch content of file " + fileId + " from " + uri
+                            + ", it's outside of the datastream base directory");
+                    return;
+                }
+                in = new FileInputStream(local);
+            } else {
+                in = uri.toURL().openStream();
+            }
+        } catch (IOException e) {
+            LOG.warn("unable to fetch content of file " + fileId + " from " + uri, e);
+            return;
+        }
+        try {
+            idRegistry.append(IdRegistry.Type.CONTENT, fileId, storage.saveDatastream(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Resolves a <code>file:</code> URI, following links and relative path
+     * segments
+     *
+     * @return the file or null if it is not inside the datastream base directory
+     */
+    private java.io.File allowedLocalFile(URI uri) throws IOException {
+        if (datastreamBaseDirectory == null) {
+            return null;
+        }
+        java.io.File local;
+        try {
+            local = new java.io.File(uri).getCanonicalFile();
+        } catch (IllegalArgumentException e) {
+            // e.g. a host name or a query
+            return null;
+        }
+        return local.getPath().startsWith(datastreamBaseDirectory) ? local : null;
+    }
+
+    /**
+     * Writes a new entity version to the storage and records it in the entity
+     * cache together with the index of its files and bitstreams
+     */
+    private void saveEntity(IntellectualEntity entity, byte[] xml, int version) throws Exception {
+        String id = entity.getIdentifier().getValue();
+        storage.saveXML(xml, id, version, false);
+        entityCache.invalidate(id, version);
+        entityCache.put(id, version, entity, xml.length);
+    }
+
+    /**
+     * Fetches a deserialized entity version from the cache, or reads it from
+     * the storage on a miss
+     */
+    private CachedEntity loadEntity(String id, Integer version) throws Exception {
+        if (id == null) {
+            throw new FileNotFoundException("No entity id given");
+        }
+        int v = (version == null) ? storage.getLatestVersionNumber(id) : version;
+        CachedEntity cached = entityCache.get(id, v);
+        if (cached == null) {
+            byte[] blob = storage.getXML(id, v);
+            IntellectualEntity entity = marshaller.deserialize(IntellectualEntity.class, new ByteArrayInputStream(blob));
+            cached = entityCache.put(id, v, entity, blob.length);
+        }
+        return cached;
     }
 
     private String extractId(Object descriptive) {
@@ -539,46 +1229,128 @@ public class MockContainer implements Container {
         if (value instanceof IntellectualEntity) {
             IntellectualEntity entity = (IntellectualEntity) value;
             ingestEntity(entity);
+            idRegistry.sync();
         }
     }
 
     public void purgeStorage() throws Exception {
+        entityCache.clear();
+        idRegistry.clear();
+        index.clear();
         storage.purge();
     }
 
     public void start() {
-        this.asyncIngesterThread = new Thread(asyncIngester);
+        this.asyncIngesterThread = new Thread(asyncIngester, "async-ingester");
         this.asyncIngesterThread.start();
     }
 
+    /**
+     * Takes due entities off the delay queue as soon as they expire and hands
+     * them over to the ingest worker pool
+     */
     public class AsyncIngester implements Runnable {
-        private boolean stop = false;
+        private volatile boolean stop = false;
+        private final AtomicLong dispatched = new AtomicLong();
+        private final AtomicLong totalLag = new AtomicLong();
+        private final AtomicLong maxLag = new AtomicLong();
 
         public void run() {
             while (!stop) {
-                for (Entry<Long, Object> asyncRequest : asyncIngestMap.entrySet()) {
-                    if (new Date().getTime() >= asyncRequest.getKey()) {
+                final AsyncIngest asyncRequest;
+                try {
+                    asyncRequest = asyncIngestQueue.take();
+                } catch (InterruptedException e) {
+                    stop = true;
+                    break;
+                }
+                recordLag(new Date().getTime() - asyncRequest.getDueTime());
+                asyncIngestWorkers.execute(new Runnable() {
+                    public void run() {
                         try {
-                            LOG.info("ingesting object at " + asyncRequest.getKey());
-                            ingestObject(asyncRequest.getValue());
+                            LOG.info("ingesting object due at " + asyncRequest.getDueTime());
+                            ingestObject(asyncRequest.getEntity());
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            LOG.error("unable to ingest entity " + asyncRequest.getEntity().getIdentifier().getValue(), e);
                         } finally {
-                            asyncIngestMap.remove(asyncRequest.getKey());
+                            // only drop the index entry once the entity is visible in the storage
+                            pendingIngests.remove(asyncRequest.getEntity().getIdentifier().getValue(), asyncRequest);
                         }
                     }
-                }
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    stop = true;
-                }
+                });
             }
         }
 
-        public synchronized void stop() {
+        private void recordLag(long lag) {
+            dispatched.incrementAndGet();
+            totalLag.addAndGet(lag);
+            long max;
+            do {
+                max = maxLag.get();
+            } while (lag > max && !maxLag.compareAndSet(max, lag));
+        }
+
+        public int getQueueDepth() {
+            return asyncIngestQueue.size();
+        }
+
+        public long getDispatchedCount() {
+            return dispatched.get();
+        }
+
+        public long getAverageLagMillis() {
+            long count = dispatched.get();
+            return count == 0 ? 0 : totalLag.get() / count;
+        }
+
+        public long getMaxLagMillis() {
+            return maxLag.get();
+        }
+
+        public void stop() {
             stop = true;
-        };
+        }
+    }
+
+    private static class AsyncIngest implements Delayed {
+        private final IntellectualEntity entity;
+        private final long dueTime;
+
+        private AsyncIngest(IntellectualEntity entity, long dueTime) {
+            this.entity = entity;
+            this.dueTime = dueTime;
+        }
+
+        public IntellectualEntity getEntity() {
+            return entity;
+        }
+
+        public long getDueTime() {
+            return dueTime;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueTime - new Date().getTime(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            if (o instanceof AsyncIngest) {
+                // compare the fixed due times, two getDelay() calls would read the clock twice
+                long other = ((AsyncIngest) o).dueTime;
+                return dueTime < other ? -1 : (dueTime == other ? 0 : 1);
+            }
+            long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+
+    private static class BulkResult {
+        private final int status;
+        private final String id;
+
+        private BulkResult(int status, String id) {
+            this.status = status;
+            this.id = id;
+        }
     }
 }
@@ -1,28 +1,72 @@
 package eu.scapeproject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.io.FileSystemUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class PosixStorage {
 
+    private static final Logger LOG = LoggerFactory.getLogger(PosixStorage.class);
+
     private final File xmlDirectory;
     private final File datastreamDirectory;
-    private final Pattern versionPattern = Pattern.compile("version\\-\\d*\\.xml");
-    
+    private final File tmpDirectory;
+    private final ShardLayout layout;
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final boolean deltaVersions;
+    private final boolean compress;
+    private final int snapshotInterval;
+    private final MockConfiguration.Durability durability;
+    private final GroupSync groupSync;
+    private final AtomicLong deltaBytesSaved = new AtomicLong();
+    private final AtomicLong reconstructions = new AtomicLong();
+    private final AtomicLong reconstructionNanos = new AtomicLong();
+    private final AtomicLong forced = new AtomicLong();
+    private static final SortedSet<Integer> EMPTY_MANIFEST = Collections.unmodifiableSortedSet(new TreeSet<Integer>());
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final String GZIP_SUFFIX = ".xml.gz";
+    private static final int READ_ATTEMPTS = 3;
+    private final Pattern versionPattern = Pattern.compile("version\\-(\\d+)\\.(xml|xml\\.gz|delta)");
+    private final ConcurrentMap<String, ConcurrentSkipListSet<Integer>> versionManifests = new ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>();
+
 
     public PosixStorage(String directory) {
+        this(directory, new MockConfiguration());
+    }
+
+    public PosixStorage(String directory, MockConfiguration config) {
+        this.deltaVersions = config.isDeltaVersions();
+        this.snapshotInterval = config.getSnapshotInterval();
+        this.compress = config.isCompressXML();
+        this.durability = config.getDurability();
         File parent = new File(directory);
         if (!parent.exists()) {
             parent.mkdir();
@@ -39,6 +83,28 @@ public class PosixStorage {
             throw new RuntimeException("Unable to access directory " + xmlDirectory.getAbsolutePath());
         }
 
+        ShardLayout configured = new ShardLayout(config.getShardLevels(), config.getShardWidth());
+        try {
+            layout = ShardLayout.open(xmlDirectory, configured);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read the layout of " + xmlDirectory.getAbsolutePath(), e);
+        }
+        if (!layout.equals(configured)) {
+            LOG.warn("storage " + xmlDirectory.getAbsolutePath() + " has a " + layout + " layout instead of the configured "
+                    + configured + ", use StorageMigration to change it");
+        }
+
+        tmpDirectory = new File(parent, "tmp");
+        if (!tmpDirectory.exists()) {
+            tmpDirectory.mkdir();
+        }
+        try {
+            // leftovers of writes interrupted by a crash, they have never been moved in place
+            FileUtils.cleanDirectory(tmpDirectory);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to clean directory " + tmpDirectory.getAbsolutePath(), e);
+        }
+
         datastreamDirectory = new File(parent, "datastreams");
         if (!datastreamDirectory.exists()) {
             datastreamDirectory.mkdir();
@@ -46,40 +112,62 @@ public class PosixStorage {
         if (!datastreamDirectory.canExecute() || !datastreamDirectory.canRead() || !datastreamDirectory.canWrite()) {
             throw new RuntimeException("Unable to access directory " + datastreamDirectory.getAbsolutePath());
         }
+        groupSync = (durability == MockConfiguration.Durability.GROUP) ? new GroupSync("storage-sync", config.getSyncThreads()) : null;
+    }
+
+    public void close() throws InterruptedException {
+        if (groupSync != null) {
+            groupSync.close();
+        }
     }
 
     public boolean exists(String id, Integer versionNumber) throws IOException{
+        SortedSet<Integer> versions = getVersions(id);
         if (versionNumber == null){
-            versionNumber=getLatestVersionNumber(id);
-        }
-        try {
-            return new File(getEntityDir(id), "version-" + versionNumber + ".xml").exists();
-        } catch (IOException e) {
-            return false;
+            return !versions.isEmpty();
         }
+        return versions.contains(versionNumber);
     }
 
-    private File getEntityDir(String id) throws IOException {
-        File f = new File(xmlDirectory, id);
-        if (f.exists() && !f.isDirectory()) {
-            throw new IOException("not a directory " + f.getAbsolutePath());
+    /**
+     * Returns the version manifest of an entity. The manifest is read from disk
+     * on first access and kept up to date by {@link #saveXML(byte[], String, int, boolean)}
+     */
+    private SortedSet<Integer> getVersions(String id) throws IOException {
+        ConcurrentSkipListSet<Integer> versions = versionManifests.get(id);
+        if (versions != null) {
+            return versions;
         }
-        if (!f.exists()) {
-            f.mkdir();
+        File dir = layout.getEntityDir(xmlDirectory, id);
+        if (!dir.exists()) {
+            // don't cache misses, or lookups of unknown ids would fill up the heap
+            return EMPTY_MANIFEST;
         }
-        return f;
-    }
-
-    public int getLatestVersionNumber(String id) throws IOException {
-        int version = 1;
-        File dir = getEntityDir(id);
+        if (!dir.isDirectory()) {
+            throw new IOException("not a directory " + dir.getAbsolutePath());
+        }
+        versions = new ConcurrentSkipListSet<Integer>();
         for (String name : dir.list()) {
             Matcher m = versionPattern.matcher(name);
-            if (m.find()) {
-                version = Math.max(version, Integer.parseInt(name.substring(m.start() + 8, m.end() - 4)));
+            if (m.matches()) {
+                versions.add(Integer.parseInt(m.group(1)));
             }
         }
-        return version;
+        ConcurrentSkipListSet<Integer> existing = versionManifests.putIfAbsent(id, versions);
+        return existing == null ? versions : existing;
+    }
+
+    /**
+     * Lists the ids of all entities in the storage. This walks the storage
+     * directory and is not meant for the request path
+     */
+    public List<String> getEntityIds() {
+        return layout.listIds(xmlDirectory);
+    }
+
+    public int getLatestVersionNumber(String id) throws IOException {
+        SortedSet<Integer> versions = getVersions(id);
+        return versions.isEmpty() ? 1 : versions.last();
     }
 
     public int getNewVersionNumber(String id) throws IOException {
@@ -88,12 +176,8 @@ public class PosixStorage {
 
     public List<String> getVersionList(String id) throws IOException {
         List<String> versionList = new ArrayList<String>();
-        File dir = getEntityDir(id);
-        for (String name : dir.list()) {
-            Matcher m = versionPattern.matcher(name);
-            if (m.find()) {
-                versionList.add(name.substring(m.start() + 8, m.end() - 4));
-            }
+        for (Integer version : getVersions(id)) {
+            versionList.add(String.valueOf(version));
         }
         return versionList;
     }
@@ -102,46 +186,484 @@ public class PosixStorage {
         return getXML(id,null);
     }
 
-    public byte[] getXML(String id, Integer version) throws Exception {
+    public byte[] getXML(final String id, Integer version) throws Exception {
+        final int v = (version == null) ? getLatestVersionNumber(id) : version;
+        return readVersion(id, v, new VersionReader<byte[]>() {
+            byte[] read(File f) throws IOException {
+                return isDelta(f) ? reconstruct(id, v, f) : readFull(f);
+            }
+        });
+    }
+
+    /**
+     * Reads a version file, looking it up again if it has been replaced by a
+     * delta in the meantime
+     */
+    private <T> T readVersion(String id, Integer version, VersionReader<T> reader) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                return reader.read(getVersionFile(id, version));
+            } catch (FileNotFoundException e) {
+                if (attempt == READ_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a version stored as a delta by applying the deltas down from
+     * the next version stored in full
+     */
+    private byte[] reconstruct(String id, int version, File delta) throws IOException {
+        long start = System.nanoTime();
+        List<File> deltas = new ArrayList<File>();
+        File f = delta;
+        int v = version;
+        while (isDelta(f)) {
+            deltas.add(f);
+            f = getVersionFile(id, ++v);
+        }
+        byte[] doc = readFull(f);
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            doc = DeltaCodec.decode(doc, FileUtils.readFileToByteArray(deltas.get(i)));
+        }
+        reconstructions.incrementAndGet();
+        reconstructionNanos.addAndGet(System.nanoTime() - start);
+        return doc;
+    }
+
+    private static byte[] readFull(File f) throws IOException {
+        if (!isCompressed(f)) {
+            return FileUtils.readFileToByteArray(f);
+        }
+        InputStream in = new GZIPInputStream(new FileInputStream(f));
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a channel on the stored XML of an entity version for streaming it
+     * to a client. The caller has to close the channel. Returns null if the
+     * version is stored as a delta or compressed, which have to be read using
+     * {@link #readXML(String, Integer)}
+     */
+    public FileChannel openXML(String id, Integer version) throws IOException {
+        File f = getVersionFile(id, version);
+        return (isDelta(f) || isCompressed(f)) ? null : openChannel(f);
+    }
+
+    /**
+     * Opens a channel on the gzip compressed XML of an entity version, which
+     * can be sent as is to clients accepting gzip. Returns null if the version
+     * is not stored compressed.
+     */
+    public FileChannel openCompressedXML(String id, Integer version) throws IOException {
+        File f = getVersionFile(id, version);
+        return isCompressed(f) ? openChannel(f) : null;
+    }
+
+    /**
+     * Returns the time a version has been written. Versions never change once
+     * written, so together with the version number this makes a validator
+     * which can be checked without opening the file
+     */
+    public long getLastModified(String id, Integer version) throws IOException {
+        return readVersion(id, version, new VersionReader<Long>() {
+            Long read(File f) throws IOException {
+                long modified = f.lastModified();
+                if (modified == 0L) {
+                    throw new FileNotFoundException("Unable to stat " + f.getAbsolutePath());
+                }
+                return modified;
+            }
+        });
+    }
+
+    public boolean isStoredCompressed(String id, Integer version) throws IOException {
+        return isCompressed(getVersionFile(id, version));
+    }
+
+    private static FileChannel openChannel(File f) {
+        try {
+            return new FileInputStream(f).getChannel();
+        } catch (FileNotFoundException e) {
+            // replaced by a delta in the meantime
+            return null;
+        }
+    }
+
+    /**
+     * Opens a stream on the XML of an entity version regardless of the way
+     * it is stored. The caller has to close the stream.
+     */
+    public InputStream readXML(String id, Integer version) throws Exception {
+        File f = getVersionFile(id, version);
+        if (!isDelta(f)) {
+            try {
+                InputStream in = new FileInputStream(f);
+                return isCompressed(f) ? new GZIPInputStream(in) : in;
+            } catch (FileNotFoundException e) {
+                // replaced by a delta in the meantime
+            }
+        }
+        return new ByteArrayInputStream(getXML(id, version));
+    }
+
+    /**
+     * Returns the file holding a version, which is either the full XML or a
+     * delta against the next version
+     */
+    private File getVersionFile(String id, Integer version) throws IOException {
+        if (id == null) {
+            throw new FileNotFoundException("No entity id given");
+        }
         if (version == null){
             version=getLatestVersionNumber(id);
         }
-        final File entityDir = new File(xmlDirectory, id);
+        final File entityDir = layout.getEntityDir(xmlDirectory, id);
         if (!entityDir.exists() || !entityDir.canRead() || !entityDir.isDirectory()) {
             throw new FileNotFoundException("Unable to open dir " + entityDir.getAbsolutePath());
         }
-        final File f = new File(entityDir, "version-" + version + ".xml");
+        File f = new File(entityDir, "version-" + version + ".xml");
+        if (!f.exists()) {
+            f = new File(entityDir, "version-" + version + GZIP_SUFFIX);
+        }
+        if (!f.exists()) {
+            f = new File(entityDir, "version-" + version + DELTA_SUFFIX);
+        }
         if (!f.exists() || !f.canRead()) {
             throw new FileNotFoundException("Unable to open file " + f.getAbsolutePath());
         }
-        return IOUtils.toByteArray(new FileInputStream(f));
+        return f;
+    }
+
+    private static boolean isDelta(File f) {
+        return f.getName().endsWith(DELTA_SUFFIX);
+    }
+
+    private static boolean isCompressed(File f) {
+        return f.getName().endsWith(GZIP_SUFFIX);
+    }
+
+    /**
+     * Returns the file a new full version is written to, depending on whether
+     * versions are stored compressed
+     */
+    private File newVersionFile(File entityDir, String name, int version, boolean overwrite) throws IOException {
+        File f = new File(entityDir, "version-" + version + (compress ? GZIP_SUFFIX : ".xml"));
+        if (!overwrite && (f.exists() || getVersions(name).contains(version))) {
+            throw new IOException("File " + f.getAbsolutePath() + " exists already!");
+        }
+        return f;
+    }
+
+    /**
+     * Replaces the full copy of the version preceding a newly saved one by a
+     * delta against the new version. Every snapshot interval'th version is
+     * kept in full, so at most that many deltas have to be applied to read a
+     * version
+     */
+    private void storePreviousAsDelta(String name, int version, byte[] next) throws IOException {
+        int previous = version - 1;
+        if (!deltaVersions || previous < 1 || previous % snapshotInterval == 0 || !getVersions(name).contains(previous)) {
+            return;
+        }
+        File entityDir = layout.getEntityDir(xmlDirectory, name);
+        File full = getVersionFile(name, previous);
+        if (isDelta(full)) {
+            return;
+        }
+        byte[] old = readFull(full);
+        byte[] delta = DeltaCodec.encode(next, old);
+        if (delta.length >= old.length) {
+            return;
+        }
+        File tmp = createTempFile();
+        FileUtils.writeByteArrayToFile(tmp, delta);
+        // the version's content hasn't changed, so neither does its modification time
+        tmp.setLastModified(full.lastModified());
+        // the delta has to be durable before the full copy goes away
+        moveInPlace(tmp, new File(entityDir, "version-" + previous + DELTA_SUFFIX));
+        full.delete();
+        deltaBytesSaved.addAndGet(old.length - delta.length);
+    }
+
+    public long getDeltaBytesSaved() {
+        return deltaBytesSaved.get();
+    }
+
+    public long getReconstructionCount() {
+        return reconstructions.get();
+    }
+
+    public long getAverageReconstructionMicros() {
+        long count = reconstructions.get();
+        return count == 0 ? 0 : reconstructionNanos.get() / count / 1000;
+    }
+
+    public long getSyncBatchCount() {
+        return groupSync == null ? 0 : groupSync.getBatchCount();
+    }
+
+    public long getGroupSyncedCount() {
+        return groupSync == null ? 0 : groupSync.getFileCount();
+    }
+
+    public long getLargestSyncBatch() {
+        return groupSync == null ? 0 : groupSync.getLargestBatch();
+    }
+
+    public long getAverageSyncBatchMicros() {
+        return groupSync == null ? 0 : groupSync.getAverageBatchMicros();
+    }
+
+    /**
+     * Returns the number of files forced to disk before they were moved in
+     * place. Nothing is forced if durability is disabled, concurrent writes
+     * share their forces if it is set to group
+     */
+    public long getForcedCount() {
+        return forced.get();
+    }
+
+    /**
+     * Moves a completely written temporary file in place, so readers never see
+     * a partially written version, not even after a crash. Depending on the
+     * configured durability the file is synced first and the rename after
+     */
+    private void moveInPlace(File tmp, File f) throws IOException {
+        forceFile(tmp);
+        if (!tmp.renameTo(f)) {
+            // File.renameTo doesn't replace existing files on every platform
+            if (!f.exists() || !f.delete() || !tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Unable to move " + tmp.getAbsolutePath() + " to " + f.getAbsolutePath());
+            }
+        }
+        forceDirectory(f.getParentFile());
+    }
+
+    private void forceFile(File f) throws IOException {
+        if (durability == MockConfiguration.Durability.FSYNC) {
+            GroupSync.force(f, true);
+        } else if (durability == MockConfiguration.Durability.GROUP) {
+            groupSync.force(f);
+        } else {
+            return;
+        }
+        forced.incrementAndGet();
+    }
+
+    /**
+     * Syncs a directory, so renames into it and directories created in it
+     * survive a crash. A file system refusing to sync directories only costs
+     * durability, so failures are logged instead of failing the write
+     */
+    private void forceDirectory(File dir) {
+        if (durability == MockConfiguration.Durability.NONE) {
+            return;
+        }
+        try {
+            GroupSync.forceDirectory(dir);
+        } catch (IOException e) {
+            LOG.warn("Unable to sync directory " + dir.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Creates a directory including missing parents and syncs the parent of
+     * each directory created
+     */
+    private void createDirectory(File dir) {
+        List<File> created = new ArrayList<File>();
+        for (File d = dir; d != null && !d.exists(); d = d.getParentFile()) {
+            created.add(d);
+        }
+        dir.mkdirs();
+        for (File d : created) {
+            forceDirectory(d.getParentFile());
+        }
+    }
+
+    /**
+     * Stores binary content in the content addressed datastream store. The
+     * SHA-256 digest is computed while the content is written to a temporary
+     * file, which is then moved to a directory sharded by the leading digits of
+     * the digest. Content which is stored already is not stored a second time
+     *
+     * @return the hex encoded SHA-256 digest under which the content is stored
+     */
+    public String saveDatastream(InputStream content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        File tmp = createTempFile();
+        OutputStream out = new FileOutputStream(tmp);
+        boolean written = false;
+        try {
+            IOUtils.copy(new DigestInputStream(content, digest), out);
+            written = true;
+        } finally {
+            out.close();
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        StringBuilder hash = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return moveDatastream(tmp, hash.toString());
+    }
+
+    private String moveDatastream(File tmp, String hash) throws IOException {
+        File f = getDatastreamFile(hash);
+        if (f.exists()) {
+            tmp.delete();
+            deduplicated.incrementAndGet();
+            return hash;
+        }
+        createDirectory(f.getParentFile());
+        forceFile(tmp);
+        // a concurrent upload of the same content may have won the race, which is fine since it's the same content
+        if (!tmp.renameTo(f) && !f.exists()) {
+            tmp.delete();
+            throw new IOException("Unable to move " + tmp.getAbsolutePath() + " to " + f.getAbsolutePath());
+        }
+        tmp.delete();
+        forceDirectory(f.getParentFile());
+        return hash;
+    }
+
+    /**
+     * Opens a channel on content stored by {@link #saveDatastream(InputStream)}.
+     * The caller has to close the channel.
+     */
+    public FileChannel openDatastream(String hash) throws IOException {
+        File f = getDatastreamFile(hash);
+        if (!f.exists()) {
+            throw new FileNotFoundException("Unable to open datastream " + f.getAbsolutePath());
+        }
+        return new FileInputStream(f).getChannel();
+    }
+
+    /**
+     * Returns the time content stored by {@link #saveDatastream(InputStream)}
+     * has been written. Stored content never changes
+     */
+    public long getDatastreamLastModified(String hash) throws IOException {
+        File f = getDatastreamFile(hash);
+        long modified = f.lastModified();
+        if (modified == 0L) {
+            throw new FileNotFoundException("Unable to stat datastream " + f.getAbsolutePath());
+        }
+        return modified;
+    }
+
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+
+    private File getDatastreamFile(String hash) {
+        if (!hash.matches("[0-9a-f]{64}")) {
+            throw new IllegalArgumentException("not a SHA-256 digest: " + hash);
+        }
+        return new File(new File(new File(datastreamDirectory, hash.substring(0, 2)), hash.substring(2, 4)), hash);
     }
 
     public void purge() throws Exception {
     	// to avoid delete problems on windows use gc first. 
     	System.gc();
+        versionManifests.clear();
         FileUtils.deleteDirectory(xmlDirectory);
+        xmlDirectory.mkdir();
+        layout.write(xmlDirectory);
         FileUtils.deleteDirectory(datastreamDirectory);
+        FileUtils.cleanDirectory(tmpDirectory);
+    }
+
+    /**
+     * Creates a file on the storage's file system to which a new version can
+     * be streamed before it is moved in place by {@link #saveXML(File, String, int)}
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("ingest-", ".xml", tmpDirectory);
+    }
+
+    /**
+     * Moves a file created by {@link #createTempFile()} in place as a new
+     * version of an entity
+     */
+    public void saveXML(File tmp, String name, int version) throws IOException {
+        File entityDir = layout.getEntityDir(xmlDirectory, name);
+        if (!entityDir.exists()) {
+            createDirectory(entityDir);
+        }
+        File f = newVersionFile(entityDir, name, version, false);
+        if (compress) {
+            File compressed = createTempFile();
+            InputStream in = new FileInputStream(tmp);
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed));
+            try {
+                IOUtils.copy(in, out);
+            } finally {
+                in.close();
+                out.close();
+            }
+            tmp.delete();
+            tmp = compressed;
+        }
+        moveInPlace(tmp, f);
+        if (deltaVersions) {
+            storePreviousAsDelta(name, version, readFull(f));
+        }
+        getVersions(name).add(version);
     }
 
     public void saveXML(byte[] blob, String name, int version, boolean overwrite) throws Exception {
-        File entityDir = new File(xmlDirectory, name);
+        File entityDir = layout.getEntityDir(xmlDirectory, name);
         if (entityDir.exists() && (entityDir.isFile() || !entityDir.canWrite())) {
             throw new IOException("Unable to write to " + entityDir.getAbsolutePath());
         }
         if (!entityDir.exists()) {
-            entityDir.mkdir();
-        }
-        File f = new File(entityDir, "version-" + version + ".xml");
-        if (f.exists() && !overwrite) {
-            throw new IOException("File " + f.getAbsolutePath() + " exists already!");
+            createDirectory(entityDir);
         }
-        OutputStream out = null;
+        File f = newVersionFile(entityDir, name, version, overwrite);
+        File tmp = createTempFile();
+        OutputStream out = new FileOutputStream(tmp);
+        boolean written = false;
         try {
-            out = new FileOutputStream(f);
+            if (compress) {
+                out = new GZIPOutputStream(out);
+            }
             IOUtils.write(blob, out);
+            // errors on close, e.g. a full disk, must not go unnoticed here
+            out.close();
+            written = true;
         } finally {
-            IOUtils.closeQuietly(out);
+            if (!written) {
+                IOUtils.closeQuietly(out);
+                tmp.delete();
+            }
         }
+        moveInPlace(tmp, f);
+        storePreviousAsDelta(name, version, blob);
+        // the entity directory exists at this point, so the manifest is always a mutable one
+        getVersions(name).add(version);
+    }
+
+    private abstract static class VersionReader<T> {
+        /**
+         * @throws FileNotFoundException
+         *             if the file doesn't exist (anymore)
+         */
+        abstract T read(File f) throws IOException;
     }
 }
@@ -0,0 +1,111 @@
+package eu.scapeproject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs requests on a bounded pool of worker threads instead of the threads of
+ * the HTTP server. Requests wait in a bounded queue while all workers are
+ * busy, and are rejected once the queue is full, so the caller can answer
+ * with 503. Kinds of requests which may take long, e.g. searches, can be
+ * given a limit of concurrent requests, so they can't occupy all workers and
+ * starve short requests
+ *
+ */
+public class RequestDispatcher<K> {
+
+    private final ThreadPoolExecutor workers;
+    private final Map<K, Semaphore> limits = new HashMap<K, Semaphore>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threads
+     *            the number of worker threads, or 0 to run requests on the
+     *            calling thread
+     * @param queueSize
+     *            the number of requests waiting for a worker before requests
+     *            are rejected
+     */
+    public RequestDispatcher(int threads, int queueSize, ThreadFactory threadFactory) {
+        if (threads == 0) {
+            this.workers = null;
+        } else {
+            BlockingQueue<Runnable> queue = (queueSize == 0) ? new SynchronousQueue<Runnable>()
+                    : new ArrayBlockingQueue<Runnable>(queueSize);
+            this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, threadFactory);
+        }
+    }
+
+    /**
+     * Limits the number of concurrent requests of the given kinds, which
+     * share the limit. Has to be called before requests are dispatched
+     */
+    public RequestDispatcher<K> limit(int permits, K... keys) {
+        Semaphore semaphore = new Semaphore(permits);
+        for (K key : keys) {
+            limits.put(key, semaphore);
+        }
+        return this;
+    }
+
+    /**
+     * Runs a request of the given kind, or rejects it if its kind is at its
+     * limit or all workers are busy and the queue is full
+     *
+     * @return false if the request has been rejected and won't run
+     */
+    public boolean execute(K key, final Runnable request) {
+        final Semaphore limit = limits.get(key);
+        if (limit != null && !limit.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        Runnable task = (limit == null) ? request : new Runnable() {
+            public void run() {
+                try {
+                    request.run();
+                } finally {
+                    limit.release();
+                }
+            }
+        };
+        if (workers == null) {
+            task.run();
+            return true;
+        }
+        try {
+            workers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (limit != null) {
+                limit.release();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        if (workers != null) {
+            workers.shutdown();
+            workers.awaitTermination(timeout, unit);
+        }
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getQueueDepth() {
+        return workers == null ? 0 : workers.getQueue().size();
+    }
+}
@@ -0,0 +1,150 @@
+package eu.scapeproject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps request methods and paths to endpoints using a trie of path segments.
+ * Besides literal segments a route may contain an <code>{id}</code> segment
+ * matching any value and a <code>{version}</code> segment matching version
+ * numbers only, e.g. <code>/entity/{version}/{id}</code>. Literal segments
+ * take precedence over version segments, which take precedence over ids.
+ * Empty segments are skipped, so <code>/entity//id</code> is the same as
+ * <code>/entity/id</code>. Routes are added up front, lookups are thread safe
+ * afterwards
+ *
+ */
+public class Router<T> {
+
+    private static final String ID = "{id}";
+    private static final String VERSION = "{version}";
+    /** longer numbers don't fit into an int, so they are no version */
+    private static final int MAX_VERSION_DIGITS = 9;
+
+    private final Map<String, Node<T>> roots = new HashMap<String, Node<T>>();
+
+    public Router<T> add(String method, String pattern, T target) {
+        Node<T> node = roots.get(method);
+        if (node == null) {
+            node = new Node<T>();
+            roots.put(method, node);
+        }
+        for (String segment : split(pattern)) {
+            if (segment.equals(ID)) {
+                if (node.id == null) {
+                    node.id = new Node<T>();
+                }
+                node = node.id;
+            } else if (segment.equals(VERSION)) {
+                if (node.version == null) {
+                    node.version = new Node<T>();
+                }
+                node = node.version;
+            } else {
+                Node<T> child = node.literals.get(segment);
+                if (child == null) {
+                    child = new Node<T>();
+                    node.literals.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        if (node.target != null) {
+            throw new IllegalArgumentException("duplicate route " + method + " " + pattern);
+        }
+        node.target = target;
+        return this;
+    }
+
+    /**
+     * @return the endpoint and path parameters of a request or null if no
+     *         route matches
+     */
+    public Match<T> find(String method, String path) {
+        Node<T> root = roots.get(method);
+        if (root == null) {
+            return null;
+        }
+        Match<T> match = new Match<T>();
+        return find(root, split(path), 0, match) ? match : null;
+    }
+
+    private boolean find(Node<T> node, List<String> segments, int index, Match<T> match) {
+        if (index == segments.size()) {
+            match.target = node.target;
+            return node.target != null;
+        }
+        String segment = segments.get(index);
+        Node<T> literal = node.literals.get(segment);
+        if (literal != null && find(literal, segments, index + 1, match)) {
+            return true;
+        }
+        if (node.version != null && isVersion(segment) && find(node.version, segments, index + 1, match)) {
+            match.version = Integer.valueOf(segment);
+            return true;
+        }
+        if (node.id != null && find(node.id, segments, index + 1, match)) {
+            match.id = segment;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isVersion(String segment) {
+        if (segment.length() > MAX_VERSION_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> split(String path) {
+        List<String> segments = new ArrayList<String>(4);
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    private static class Node<T> {
+        private final Map<String, Node<T>> literals = new HashMap<String, Node<T>>(4);
+        private Node<T> version;
+        private Node<T> id;
+        private T target;
+    }
+
+    public static class Match<T> {
+        private T target;
+        private String id;
+        private Integer version;
+
+        public T getTarget() {
+            return target;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the requested version or null for the latest one
+         */
+        public Integer getVersion() {
+            return version;
+        }
+    }
+}
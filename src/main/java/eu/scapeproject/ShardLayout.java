@@ -0,0 +1,152 @@
+package eu.scapeproject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Directory layout of the entities in a {@link PosixStorage}. Entity
+ * directories are spread over nested shard directories named after the
+ * leading hex digits of a hash of the entity id, so no directory grows beyond
+ * 16^width entries per level. A layout with zero levels is the flat layout of
+ * older storages. The layout is recorded in a properties file in the storage
+ * directory, so a storage is always read with the layout it was written with.
+ *
+ */
+public class ShardLayout {
+
+    static final String LAYOUT_FILE = "layout.properties";
+    private static final int MAX_DIGITS = 8;
+
+    public static final ShardLayout FLAT = new ShardLayout(0, 0);
+
+    private final int levels;
+    private final int width;
+
+    public ShardLayout(int levels, int width) {
+        if (levels < 0 || width < 0 || levels * width > MAX_DIGITS || (levels > 0 && width == 0)) {
+            throw new IllegalArgumentException("unsupported shard layout of " + levels + " levels with " + width + " digits");
+        }
+        this.levels = levels;
+        this.width = width;
+    }
+
+    /**
+     * Reads the layout recorded in a directory. A directory without layout
+     * file is assumed to be flat if it has content, otherwise it's empty and
+     * the given default layout is recorded.
+     */
+    public static ShardLayout open(File dir, ShardLayout defaultLayout) throws IOException {
+        File f = new File(dir, LAYOUT_FILE);
+        if (f.exists()) {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(f);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            return new ShardLayout(Integer.parseInt(props.getProperty("levels")), Integer.parseInt(props.getProperty("width")));
+        }
+        String[] names = dir.list();
+        if (names != null && names.length > 0) {
+            return FLAT;
+        }
+        defaultLayout.write(dir);
+        return defaultLayout;
+    }
+
+    public void write(File dir) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("levels", String.valueOf(levels));
+        props.setProperty("width", String.valueOf(width));
+        OutputStream out = new FileOutputStream(new File(dir, LAYOUT_FILE));
+        try {
+            props.store(out, "entity directory layout, use StorageMigration to change it");
+        } finally {
+            out.close();
+        }
+    }
+
+    public File getEntityDir(File root, String id) {
+        File dir = root;
+        if (levels > 0) {
+            String hash = hash(id);
+            for (int i = 0; i < levels; i++) {
+                dir = new File(dir, hash.substring(i * width, (i + 1) * width));
+            }
+        }
+        return new File(dir, id);
+    }
+
+    /**
+     * Lists the ids of all entities by walking the shard directories
+     */
+    public List<String> listIds(File root) {
+        List<String> ids = new ArrayList<String>();
+        collect(root, 0, ids);
+        return ids;
+    }
+
+    private void collect(File dir, int level, List<String> ids) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!child.isDirectory()) {
+                continue;
+            }
+            if (level == levels) {
+                ids.add(child.getName());
+            } else {
+                collect(child, level + 1, ids);
+            }
+        }
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ShardLayout)) {
+            return false;
+        }
+        ShardLayout other = (ShardLayout) o;
+        return levels == other.levels && width == other.width;
+    }
+
+    public int hashCode() {
+        return levels * 31 + width;
+    }
+
+    public String toString() {
+        return levels == 0 ? "flat" : levels + " levels of " + width + " hex digits";
+    }
+
+    private static String hash(String id) {
+        // String.hashCode is specified, so the mixed value is stable across JVMs
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        String hex = Integer.toHexString(h);
+        while (hex.length() < MAX_DIGITS) {
+            hex = "0" + hex;
+        }
+        return hex;
+    }
+}
@@ -0,0 +1,87 @@
+package eu.scapeproject;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the entities of a {@link PosixStorage} into another
+ * {@link ShardLayout}, e.g. from the flat layout of older storages into
+ * shard directories. The entity directories are renamed into a new directory
+ * tree which replaces the old one once all entities have been moved, so an
+ * interrupted migration can simply be started again. The mock must not be
+ * running on the storage during the migration.
+ *
+ * <pre>
+ * java eu.scapeproject.StorageMigration &lt;storage-dir&gt; [levels] [width]
+ * </pre>
+ *
+ */
+public class StorageMigration {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageMigration.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 && args.length != 3) {
+            System.err.println("usage: StorageMigration <storage-dir> [levels] [width]");
+            System.exit(1);
+        }
+        MockConfiguration config = new MockConfiguration();
+        ShardLayout target = (args.length == 3)
+                ? new ShardLayout(Integer.parseInt(args[1]), Integer.parseInt(args[2]))
+                : new ShardLayout(config.getShardLevels(), config.getShardWidth());
+        migrate(new File(args[0]), target);
+    }
+
+    public static void migrate(File storageDir, ShardLayout target) throws IOException {
+        File current = new File(storageDir, "foxml");
+        File migrating = new File(storageDir, "foxml.migrating");
+        File old = new File(storageDir, "foxml.old");
+        if (!current.exists() && migrating.exists()) {
+            // interrupted right between the two renames below
+            swap(migrating, current, old);
+            return;
+        }
+        if (!migrating.exists()) {
+            ShardLayout layout = ShardLayout.open(current, target);
+            if (layout.equals(target)) {
+                LOG.info("storage " + current.getAbsolutePath() + " has a " + target + " layout already");
+                return;
+            }
+            if (!migrating.mkdir()) {
+                throw new IOException("Unable to create " + migrating.getAbsolutePath());
+            }
+        }
+        ShardLayout source = ShardLayout.open(current, target);
+        LOG.info("migrating storage " + current.getAbsolutePath() + " from " + source + " to " + target + " layout");
+        int count = 0;
+        for (String id : source.listIds(current)) {
+            File from = source.getEntityDir(current, id);
+            File to = target.getEntityDir(migrating, id);
+            to.getParentFile().mkdirs();
+            if (!from.renameTo(to)) {
+                throw new IOException("Unable to move " + from.getAbsolutePath() + " to " + to.getAbsolutePath());
+            }
+            if (++count % 10000 == 0) {
+                LOG.info("moved " + count + " entities");
+            }
+        }
+        target.write(migrating);
+        if (!current.renameTo(old)) {
+            throw new IOException("Unable to move " + current.getAbsolutePath() + " to " + old.getAbsolutePath());
+        }
+        swap(migrating, current, old);
+        LOG.info("migrated " + count + " entities");
+    }
+
+    private static void swap(File migrating, File current, File old) throws IOException {
+        if (!migrating.renameTo(current)) {
+            throw new IOException("Unable to move " + migrating.getAbsolutePath() + " to " + current.getAbsolutePath());
+        }
+        // only empty shard directories and the old layout file are left
+        FileUtils.deleteDirectory(old);
+    }
+}
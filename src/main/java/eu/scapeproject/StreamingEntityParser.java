@@ -0,0 +1,279 @@
+package eu.scapeproject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Copies a METS document posted for ingest event by event with StAX instead of
+ * unmarshalling it. On the way the entity, representations (top level file
+ * groups of the file section), files and bitstreams get an identifier if they
+ * lack one and the DC titles and descriptions are collected for the search
+ * index. Titles of a dmdSec referenced by a representation, either from its
+ * file group or from a structMap div pointing to its files, are the
+ * representation's, all others the entity's. They are collected together with the locations of the files' content and the id
+ * mappings, which the caller records in the {@link IdRegistry} once the
+ * entity has been stored. Only the current element path is kept in memory.
+ *
+ */
+public class StreamingEntityParser {
+
+    private static final String METS_NS = "http://www.loc.gov/METS/";
+    private static final String DC_NS = "http://purl.org/dc/elements/1.1/";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    private static final QName HREF = new QName(XLINK_NS, "href");
+    private static final QName OBJID = new QName("OBJID");
+    private static final QName ID = new QName("ID");
+    private static final QName DMDID = new QName("DMDID");
+    private static final QName FILEID = new QName("FILEID");
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    public Result parse(InputStream in, OutputStream out) throws XMLStreamException, IOException {
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+        Result result = new Result();
+        Map<String, DmdSec> dmdSecs = new LinkedHashMap<String, DmdSec>();
+        DmdSec dmdSec = null;
+        boolean inFileSec = false;
+        int fileGrpDepth = 0;
+        String representationId = null;
+        String fileId = null;
+        Map<String, String> fileRepresentations = new HashMap<String, String>();
+        Map<String, String> representationDmdIds = new HashMap<String, String>();
+        boolean inStructMap = false;
+        List<String> divDmdIds = new ArrayList<String>();
+        StringBuilder text = null;
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartDocument()) {
+                    // the copy is always written as UTF-8
+                    event = eventFactory.createStartDocument("UTF-8", "1.0");
+                } else if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    String ns = element.getName().getNamespaceURI();
+                    String name = element.getName().getLocalPart();
+                    if (result.entityId == null) {
+                        if (!METS_NS.equals(ns) || !name.equals("mets")) {
+                            throw new XMLStreamException("not a METS document: " + element.getName());
+                        }
+                        element = withAttribute(element, OBJID);
+                        result.entityId = element.getAttributeByName(OBJID).getValue();
+                    } else if (METS_NS.equals(ns)) {
+                        if (name.equals("dmdSec")) {
+                            Attribute id = element.getAttributeByName(ID);
+                            dmdSec = new DmdSec();
+                            dmdSecs.put(id == null ? "#" + dmdSecs.size() : id.getValue(), dmdSec);
+                        } else if (name.equals("fileSec")) {
+                            inFileSec = true;
+                        } else if (inFileSec && name.equals("fileGrp")) {
+                            if (fileGrpDepth++ == 0) {
+                                element = register(element, IdRegistry.Type.REPRESENTATION, result);
+                                representationId = element.getAttributeByName(ID).getValue();
+                                result.representationIds.add(representationId);
+                                String dmdId = firstIdRef(element.getAttributeByName(DMDID));
+                                if (dmdId != null) {
+                                    representationDmdIds.put(representationId, dmdId);
+                                }
+                            }
+                        } else if (inFileSec && name.equals("file")) {
+                            element = register(element, IdRegistry.Type.FILE, result);
+                            fileId = element.getAttributeByName(ID).getValue();
+                            if (representationId != null) {
+                                fileRepresentations.put(fileId, representationId);
+                            }
+                        } else if (name.equals("structMap")) {
+                            inStructMap = true;
+                        } else if (inStructMap && name.equals("div")) {
+                            divDmdIds.add(firstIdRef(element.getAttributeByName(DMDID)));
+                        } else if (inStructMap && name.equals("fptr")) {
+                            String representation = fileRepresentations.get(firstIdRef(element.getAttributeByName(FILEID)));
+                            // the outermost div is the entity's
+                            for (int i = divDmdIds.size() - 1; i > 0 && representation != null; i--) {
+                                if (divDmdIds.get(i) != null) {
+                                    if (!representationDmdIds.containsKey(representation)) {
+                                        representationDmdIds.put(representation, divDmdIds.get(i));
+                                    }
+                                    break;
+                                }
+                            }
+                        } else if (fileId != null && name.equals("FLocat")) {
+                            Attribute href = element.getAttributeByName(HREF);
+                            if (href != null && !result.fileLocations.containsKey(fileId)) {
+                                result.fileLocations.put(fileId, href.getValue());
+                            }
+                        } else if (inFileSec && name.equals("stream")) {
+                            element = register(element, IdRegistry.Type.BITSTREAM, result);
+                        }
+                    } else if (dmdSec != null && DC_NS.equals(ns) && (name.equals("title") || name.equals("description"))) {
+                        text = new StringBuilder();
+                    }
+                    event = element;
+                } else if (event.isCharacters() && text != null) {
+                    text.append(event.asCharacters().getData());
+                } else if (event.isEndElement()) {
+                    QName name = event.asEndElement().getName();
+                    if (text != null && DC_NS.equals(name.getNamespaceURI())) {
+                        (name.getLocalPart().equals("title") ? dmdSec.titles : dmdSec.descriptions).add(text.toString());
+                        text = null;
+                    } else if (METS_NS.equals(name.getNamespaceURI())) {
+                        if (name.getLocalPart().equals("dmdSec")) {
+                            dmdSec = null;
+                        } else if (name.getLocalPart().equals("fileSec")) {
+                            inFileSec = false;
+                        } else if (inFileSec && name.getLocalPart().equals("fileGrp")) {
+                            if (--fileGrpDepth == 0) {
+                                representationId = null;
+                            }
+                        } else if (name.getLocalPart().equals("file")) {
+                            fileId = null;
+                        } else if (name.getLocalPart().equals("structMap")) {
+                            inStructMap = false;
+                        } else if (inStructMap && name.getLocalPart().equals("div")) {
+                            divDmdIds.remove(divDmdIds.size() - 1);
+                        }
+                    }
+                }
+                writer.add(event);
+            }
+            writer.flush();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+        if (result.entityId == null) {
+            throw new XMLStreamException("empty document");
+        }
+        for (Map.Entry<String, String> representation : representationDmdIds.entrySet()) {
+            DmdSec dmd = dmdSecs.get(representation.getValue());
+            if (dmd != null && !dmd.titles.isEmpty()) {
+                result.representationTitles.put(representation.getKey(), dmd.titles.get(0));
+            }
+        }
+        for (Map.Entry<String, DmdSec> dmd : dmdSecs.entrySet()) {
+            if (!representationDmdIds.containsValue(dmd.getKey())) {
+                result.titles.addAll(dmd.getValue().titles);
+                result.descriptions.addAll(dmd.getValue().descriptions);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first id of an IDREFS attribute such as DMDID
+     */
+    private static String firstIdRef(Attribute idRefs) {
+        if (idRefs == null) {
+            return null;
+        }
+        String[] ids = idRefs.getValue().trim().split("\\s+");
+        return ids[0].length() == 0 ? null : ids[0];
+    }
+
+    private StartElement register(StartElement element, IdRegistry.Type type, Result result) {
+        StartElement withId = withAttribute(element, ID);
+        result.ids.put(withId.getAttributeByName(ID).getValue(), type);
+        return withId;
+    }
+
+    /**
+     * Adds a generated value for the given attribute if the element lacks it
+     */
+    @SuppressWarnings("unchecked")
+    private StartElement withAttribute(StartElement element, QName attribute) {
+        Attribute existing = element.getAttributeByName(attribute);
+        if (existing != null && existing.getValue().length() > 0) {
+            return element;
+        }
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (Iterator<Attribute> it = element.getAttributes(); it.hasNext();) {
+            Attribute a = it.next();
+            if (!a.getName().equals(attribute)) {
+                attributes.add(a);
+            }
+        }
+        attributes.add(eventFactory.createAttribute(attribute, UUID.randomUUID().toString()));
+        QName name = element.getName();
+        return eventFactory.createStartElement(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(),
+                attributes.iterator(), element.getNamespaces(), element.getNamespaceContext());
+    }
+
+    private static class DmdSec {
+        private final List<String> titles = new ArrayList<String>();
+        private final List<String> descriptions = new ArrayList<String>();
+    }
+
+    public static class Result {
+        private String entityId;
+        private final List<String> representationIds = new ArrayList<String>();
+        private final List<String> titles = new ArrayList<String>();
+        private final List<String> descriptions = new ArrayList<String>();
+        private final Map<String, String> fileLocations = new LinkedHashMap<String, String>();
+        private final Map<String, IdRegistry.Type> ids = new LinkedHashMap<String, IdRegistry.Type>();
+        private final Map<String, String> representationTitles = new HashMap<String, String>();
+
+        public String getEntityId() {
+            return entityId;
+        }
+
+        public List<String> getRepresentationIds() {
+            return representationIds;
+        }
+
+        /**
+         * @return the ids of the representations mapped to their title,
+         *         representations without a title are left out
+         */
+        public Map<String, String> getRepresentationTitles() {
+            return representationTitles;
+        }
+
+        public List<String> getTitles() {
+            return titles;
+        }
+
+        public List<String> getDescriptions() {
+            return descriptions;
+        }
+
+        /**
+         * @return the ids of the files mapped to the location of their
+         *         content as posted
+         */
+        public Map<String, String> getFileLocations() {
+            return fileLocations;
+        }
+
+        /**
+         * Maps the ids of the entity's representations, files and bitstreams
+         * to the entity in the registry. The mappings are appended only, the
+         * caller has to sync the registry
+         */
+        public void register(IdRegistry registry) throws IOException {
+            for (Map.Entry<String, IdRegistry.Type> id : ids.entrySet()) {
+                registry.append(id.getValue(), id.getKey(), entityId);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package eu.scapeproject;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import eu.scapeproject.util.ScapeMarshaller;
+
+/**
+ * Gives each thread its own {@link ScapeMarshaller}. The JAXB marshallers
+ * and unmarshallers wrapped by a {@link ScapeMarshaller} are not thread safe,
+ * but creating them is expensive, so every request thread and worker keeps
+ * reusing the instance created on its first call
+ *
+ */
+public class ThreadLocalMarshaller {
+
+    private final ThreadLocal<ScapeMarshaller> marshallers = new ThreadLocal<ScapeMarshaller>() {
+        protected ScapeMarshaller initialValue() {
+            try {
+                return ScapeMarshaller.newInstance();
+            } catch (JAXBException e) {
+                throw new IllegalStateException("unable to create a marshaller", e);
+            }
+        }
+    };
+
+    public ThreadLocalMarshaller() throws JAXBException {
+        // fail early if the JAXB context can't be created
+        marshallers.set(ScapeMarshaller.newInstance());
+    }
+
+    public ScapeMarshaller get() {
+        return marshallers.get();
+    }
+
+    public <T> T deserialize(Class<T> type, InputStream in) throws JAXBException {
+        return get().deserialize(type, in);
+    }
+
+    public void serialize(Object value, OutputStream out) throws JAXBException {
+        get().serialize(value, out);
+    }
+
+    public Marshaller getJaxbMarshaller() {
+        return get().getJaxbMarshaller();
+    }
+}
@@ -0,0 +1,35 @@
+package eu.scapeproject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timing helpers shared by the *BenchmarkTest classes. The benchmarks are
+ * excluded from the default build and run with <code>mvn test -Pbenchmarks</code>
+ *
+ */
+public final class Benchmarks {
+
+    private static final Logger log = LoggerFactory.getLogger(Benchmarks.class);
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @return the number of operations per second
+     */
+    public static long rate(long count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+
+    /**
+     * @return the nanoseconds per operation
+     */
+    public static long latency(long count, long nanos) {
+        return nanos / Math.max(1, count);
+    }
+
+    public static void report(Class<?> benchmark, String result) {
+        log.info("BENCHMARK " + benchmark.getSimpleName() + ": " + result);
+    }
+}
@@ -0,0 +1,123 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+
+public class ByteRangesTest {
+
+    /** larger than Integer.MAX_VALUE, the file is sparse so it takes no disk space */
+    private static final long LARGE = 3L * 1024 * 1024 * 1024;
+
+    private File file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("scape-ranges-", ".bin");
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(LARGE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        raf.close();
+        file.delete();
+    }
+
+    @Test
+    public void testParseLargeRanges() throws Exception {
+        List<long[]> ranges = ByteRanges.parse("bytes=0-,-10", LARGE);
+        assertEquals(2, ranges.size());
+        assertEquals(LARGE - 1, ranges.get(0)[1]);
+        assertEquals(LARGE - 10, ranges.get(1)[0]);
+        assertEquals(0, ByteRanges.parse("bytes=" + LARGE + "-", LARGE).size());
+        assertNull(ByteRanges.parse("bytes=5-1", LARGE));
+    }
+
+    @Test
+    public void testLargeContentLength() throws Exception {
+        Map<String, String> headers = send(null);
+        assertEquals(String.valueOf(LARGE), headers.get("Content-Length"));
+
+        headers = send("bytes=1-");
+        assertEquals("bytes 1-" + (LARGE - 1) + "/" + LARGE, headers.get("Content-Range"));
+        assertEquals(String.valueOf(LARGE - 1), headers.get("Content-Length"));
+
+        headers = send("bytes=0-0,2-");
+        assertTrue(Long.parseLong(headers.get("Content-Length")) > LARGE - 2);
+    }
+
+    /**
+     * Sends the large file to a client which goes away once the body starts,
+     * so the headers can be checked without copying gigabytes
+     */
+    private Map<String, String> send(String range) throws Exception {
+        Map<String, String> requestHeaders = new HashMap<String, String>();
+        if (range != null) {
+            requestHeaders.put("Range", range);
+        }
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        try {
+            ByteRanges.send(raf.getChannel(), "application/octet-stream", "\"etag\"", fake(Request.class, requestHeaders),
+                    fake(Response.class, responseHeaders));
+            fail("the client went away");
+        } catch (IOException e) {
+            // expected
+        }
+        return responseHeaders;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, final Map<String, String> headers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("getValue")) {
+                    return headers.get(args[0]);
+                } else if (name.equals("set")) {
+                    headers.put((String) args[0], String.valueOf(args[1]));
+                } else if (name.equals("getByteChannel")) {
+                    return new WritableByteChannel() {
+                        public int write(ByteBuffer src) throws IOException {
+                            throw new IOException("client went away");
+                        }
+
+                        public boolean isOpen() {
+                            return true;
+                        }
+
+                        public void close() {
+                        }
+                    };
+                } else if (method.getReturnType() == int.class) {
+                    return 0;
+                } else if (method.getReturnType() == long.class) {
+                    return -1L;
+                } else if (method.getReturnType() == boolean.class) {
+                    return false;
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,136 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.scapeproject.model.File;
+import eu.scapeproject.model.Identifier;
+import eu.scapeproject.model.IntellectualEntity;
+import eu.scapeproject.model.Representation;
+import eu.scapeproject.util.ScapeMarshaller;
+
+public class ConnectorAPIMockStressTest {
+
+    private static final int CLIENTS = 8;
+    private static final int ENTITIES_PER_CLIENT = 25;
+    private static final ConnectorAPIMock MOCK = new ConnectorAPIMock(8388);
+    private static final ConnectorAPIUtil UTIL = new ConnectorAPIUtil("http://localhost:8388");
+    private static final Logger log = LoggerFactory.getLogger(ConnectorAPIMockStressTest.class);
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        Thread t = new Thread(MOCK);
+        t.start();
+        while (!MOCK.isRunning()) {
+            Thread.sleep(10);
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        MOCK.stop();
+        MOCK.close();
+        assertFalse(MOCK.isRunning());
+    }
+
+    private static IntellectualEntity createEntity() {
+        File file = new File.Builder()
+                .identifier(new Identifier(UUID.randomUUID().toString()))
+                .uri(URI.create("http://example.com/stress-file"))
+                .build();
+        Representation rep = new Representation.Builder(new Identifier(UUID.randomUUID().toString()))
+                .title("stress test representation")
+                .files(Arrays.asList(file))
+                .build();
+        return ModelUtil.createEntity(Arrays.asList(rep));
+    }
+
+    @Test
+    public void testConcurrentIngestAndRetrieve() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < CLIENTS; i++) {
+            results.add(clients.submit(new Callable<List<String>>() {
+                public List<String> call() throws Exception {
+                    HttpClient client = new DefaultHttpClient();
+                    ScapeMarshaller marshaller = ScapeMarshaller.newInstance();
+                    List<String> failures = new ArrayList<String>();
+                    List<IntellectualEntity> ingested = new ArrayList<IntellectualEntity>();
+                    for (int j = 0; j < ENTITIES_PER_CLIENT; j++) {
+                        IntellectualEntity entity = createEntity();
+                        HttpPost post = UTIL.createPostEntity(entity);
+                        HttpResponse resp = client.execute(post);
+                        EntityUtils.consume(resp.getEntity());
+                        post.releaseConnection();
+                        if (resp.getStatusLine().getStatusCode() != 201) {
+                            failures.add("ingest of " + entity.getIdentifier().getValue() + " returned " + resp.getStatusLine().getStatusCode());
+                        } else {
+                            ingested.add(entity);
+                        }
+                    }
+                    for (IntellectualEntity entity : ingested) {
+                        File expected = entity.getRepresentations().get(0).getFiles().get(0);
+                        HttpGet get = UTIL.createGetFile(expected);
+                        HttpResponse resp = client.execute(get);
+                        if (resp.getStatusLine().getStatusCode() != 200) {
+                            failures.add("file " + expected.getIdentifier().getValue() + " returned " + resp.getStatusLine().getStatusCode());
+                            EntityUtils.consume(resp.getEntity());
+                        } else {
+                            File fetched = marshaller.deserialize(File.class, resp.getEntity().getContent());
+                            if (!expected.getIdentifier().getValue().equals(fetched.getIdentifier().getValue())) {
+                                failures.add("file " + expected.getIdentifier().getValue() + " resolved to " + fetched.getIdentifier().getValue());
+                            }
+                        }
+                        get.releaseConnection();
+
+                        String repId = entity.getRepresentations().get(0).getIdentifier().getValue();
+                        get = UTIL.createGetRepresentation(repId);
+                        resp = client.execute(get);
+                        EntityUtils.consume(resp.getEntity());
+                        get.releaseConnection();
+                        if (resp.getStatusLine().getStatusCode() != 200) {
+                            failures.add("representation " + repId + " returned " + resp.getStatusLine().getStatusCode());
+                        }
+                    }
+                    return failures;
+                }
+            }));
+        }
+        List<String> failures = new ArrayList<String>();
+        for (Future<List<String>> result : results) {
+            failures.addAll(result.get());
+        }
+        clients.shutdown();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        int requests = CLIENTS * ENTITIES_PER_CLIENT * 3;
+        log.info("STRESS: " + requests + " requests from " + CLIENTS + " clients in " + elapsed + " ms ("
+                + (requests * 1000L / elapsed) + " requests/s)");
+        for (String failure : failures) {
+            log.error("STRESS: " + failure);
+        }
+        assertTrue(failures.size() + " of " + requests + " requests failed", failures.isEmpty());
+    }
+}
@@ -1,5 +1,6 @@
 package eu.scapeproject;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -7,7 +8,9 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,13 +20,20 @@ import java.util.UUID;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.junit.AfterClass;
@@ -34,28 +44,40 @@ import org.purl.dc.elements._1.ElementContainer;
 import org.purl.dc.elements._1.SimpleLiteral;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import eu.scapeproject.model.BitStream;
 import eu.scapeproject.model.BitStream.Type;
+import eu.scapeproject.model.File;
 import eu.scapeproject.model.Identifier;
 import eu.scapeproject.model.IntellectualEntity;
-import eu.scapeproject.model.IntellectualEntityCollection;
 import eu.scapeproject.model.LifecycleState;
 import eu.scapeproject.model.LifecycleState.State;
 import eu.scapeproject.model.Representation;
 import eu.scapeproject.model.VersionList;
-import eu.scapeproject.util.DefaultConverter;
 import eu.scapeproject.util.ScapeMarshaller;
 import gov.loc.mets.MetsType;
 
 public class ConnectorAPIMockTest {
 
-    private static final ConnectorAPIMock MOCK = new ConnectorAPIMock(8387);
+    private static final java.io.File CONTENT_DIR = new java.io.File(System.getProperty("java.io.tmpdir"), "scape-tck-content");
+    private static final ConnectorAPIMock MOCK = new ConnectorAPIMock(8387, createConfiguration());
     private static final ConnectorAPIUtil UTIL = new ConnectorAPIUtil("http://localhost:8387");
     private static final HttpClient CLIENT = new DefaultHttpClient();
     private static final Logger log = LoggerFactory.getLogger(ConnectorAPIMockTest.class);
+    private static final String SRW_NS = "http://www.loc.gov/zing/srw/";
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 
+    private static MockConfiguration createConfiguration() {
+        CONTENT_DIR.mkdirs();
+        MockConfiguration config = new MockConfiguration();
+        config.setDatastreamSchemes("file");
+        config.setDatastreamBaseDirectory(CONTENT_DIR.getAbsolutePath());
+        return config;
+    }
+
     @BeforeClass
     public static void setup() throws Exception {
         Thread t = new Thread(MOCK);
@@ -73,10 +95,14 @@ public class ConnectorAPIMockTest {
     }
 
     public ElementContainer createDCElementContainer(){
+        return createDCElementContainer("A test entity");
+    }
+
+    public ElementContainer createDCElementContainer(String titleText){
         ElementContainer c = new ElementContainer();
         
         SimpleLiteral title = new SimpleLiteral();
-        title.getContent().add("A test entity");
+        title.getContent().add(titleText);
         c.getAny().add(new JAXBElement<SimpleLiteral>(new QName("http://purl.org/dc/elements/1.1/", "title"), SimpleLiteral.class, title));
         
         SimpleLiteral date = new SimpleLiteral();
@@ -90,6 +116,39 @@ public class ConnectorAPIMockTest {
         return c;
     }
     
+    @Test
+    public void testBulkIngest() throws Exception {
+        List<IntellectualEntity> entities = new ArrayList<IntellectualEntity>();
+        for (int i = 0; i < 5; i++) {
+            entities.add(new IntellectualEntity.Builder()
+                    .identifier(new Identifier(UUID.randomUUID().toString()))
+                    .descriptive(createDCElementContainer())
+                    .build());
+        }
+        // an entity without id gets one assigned
+        entities.add(new IntellectualEntity.Builder()
+                .descriptive(createDCElementContainer())
+                .build());
+        HttpPost post = UTIL.createPostEntityBulk(entities);
+        HttpResponse resp = CLIENT.execute(post);
+        assertTrue(resp.getStatusLine().getStatusCode() == 200);
+        List<String> lines = IOUtils.readLines(resp.getEntity().getContent());
+        post.releaseConnection();
+        assertEquals(entities.size(), lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String[] item = lines.get(i).split("\t");
+            assertEquals(String.valueOf(i), item[0]);
+            assertEquals("201", item[1]);
+            if (entities.get(i).getIdentifier() != null) {
+                assertEquals(entities.get(i).getIdentifier().getValue(), item[2]);
+            }
+            HttpGet get = UTIL.createGetEntity(item[2]);
+            resp = CLIENT.execute(get);
+            assertTrue(resp.getStatusLine().getStatusCode() == 200);
+            get.releaseConnection();
+        }
+    }
+
     @Test
     public void testGetIntellectualEntityList() throws Exception {
         List<String> ids = new ArrayList<String>();
@@ -119,11 +178,17 @@ public class ConnectorAPIMockTest {
         for (String id : ids) {
             uriList.append(id + "\n");
         }
+        // unknown entities are left out of the list
+        uriList.append(UUID.randomUUID().toString() + "\n");
         post = UTIL.createGetUriList(uriList.toString());
         resp = CLIENT.execute(post);
-        // IOUtils.copy(resp.getEntity().getContent(), System.out);
-        post.releaseConnection();
         assertTrue(resp.getStatusLine().getStatusCode() == 200);
+        Document list = parseXml(resp.getEntity().getContent());
+        post.releaseConnection();
+        List<IntellectualEntity> entities = getEntities(list.getDocumentElement().getChildNodes());
+        assertEquals(2, entities.size());
+        assertEquals(ids.get(0), entities.get(0).getIdentifier().getValue());
+        assertEquals(ids.get(1), entities.get(1).getIdentifier().getValue());
     }
 
     @Test
@@ -316,6 +381,184 @@ public class ConnectorAPIMockTest {
         assertTrue(xml.length() > 10); // check for some content
         get.releaseConnection();
     }
+
+    @Test
+    public void testRetrieveFileContent() throws Exception {
+        java.io.File content = java.io.File.createTempFile("scape-content-", ".txt", CONTENT_DIR);
+        content.deleteOnExit();
+        FileUtils.writeStringToFile(content, "some file content");
+        IntellectualEntity entity = ModelUtil.createEntity(Arrays.asList(ModelUtil.createImageRepresentation(content.toURI(), null)));
+        HttpPost post = UTIL.createPostEntity(entity);
+        HttpResponse resp = CLIENT.execute(post);
+        post.releaseConnection();
+        assertTrue(resp.getStatusLine().getStatusCode() == 201);
+
+        File file = entity.getRepresentations().get(0).getFiles().get(0);
+        HttpGet get = UTIL.createGetFileContent(file);
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        assertEquals("some file content", IOUtils.toString(resp.getEntity().getContent()));
+        get.releaseConnection();
+
+        get = UTIL.createGetFileContent(file);
+        get.setHeader("Range", "bytes=5-8");
+        resp = CLIENT.execute(get);
+        assertEquals(206, resp.getStatusLine().getStatusCode());
+        assertEquals("bytes 5-8/17", resp.getFirstHeader("Content-Range").getValue());
+        assertEquals("file", IOUtils.toString(resp.getEntity().getContent()));
+        get.releaseConnection();
+
+        get = UTIL.createGetFileContent(file);
+        get.setHeader("Range", "bytes=100-");
+        resp = CLIENT.execute(get);
+        assertEquals(416, resp.getStatusLine().getStatusCode());
+        get.releaseConnection();
+
+        get = UTIL.createGetFileContent(file);
+        get.setHeader("Range", "bytes=0-3,-7");
+        resp = CLIENT.execute(get);
+        assertEquals(206, resp.getStatusLine().getStatusCode());
+        String contentType = resp.getFirstHeader("Content-Type").getValue();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        String body = IOUtils.toString(resp.getEntity().getContent());
+        get.releaseConnection();
+        assertEquals("\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-3/17\r\n\r\nsome"
+                + "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 10-16/17\r\n\r\ncontent"
+                + "\r\n--" + boundary + "--\r\n", body);
+
+        // a stale If-Range gets the whole content
+        get = UTIL.createGetFileContent(file);
+        get.setHeader("Range", "bytes=5-8");
+        get.setHeader("If-Range", "\"stale\"");
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        assertEquals("some file content", IOUtils.toString(resp.getEntity().getContent()));
+        String etag = resp.getFirstHeader("ETag").getValue();
+        get.releaseConnection();
+
+        // the content never changes, so a client holding it gets a 304
+        get = UTIL.createGetFileContent(file);
+        get.setHeader("If-None-Match", etag);
+        resp = CLIENT.execute(get);
+        assertEquals(304, resp.getStatusLine().getStatusCode());
+        get.releaseConnection();
+    }
+
+    @Test
+    public void testRetrieveFileContentRefused() throws Exception {
+        java.io.File outside = java.io.File.createTempFile("scape-content-", ".txt");
+        outside.deleteOnExit();
+        FileUtils.writeStringToFile(outside, "not to be served");
+        List<URI> uris = Arrays.asList(
+                // the scheme isn't enabled
+                URI.create("http://localhost:8387/entity-version-list/x"),
+                // outside of the base directory
+                outside.toURI(),
+                new java.io.File(CONTENT_DIR, "../" + outside.getName()).toURI());
+        List<Representation> reps = new ArrayList<Representation>();
+        for (URI uri : uris) {
+            File file = new File.Builder()
+                    .identifier(new Identifier(UUID.randomUUID().toString()))
+                    .uri(uri)
+                    .build();
+            reps.add(new Representation.Builder(new Identifier(UUID.randomUUID().toString()))
+                    .files(Arrays.asList(file))
+                    .build());
+        }
+        IntellectualEntity entity = ModelUtil.createEntity(reps);
+        HttpPost post = UTIL.createPostEntity(entity);
+        HttpResponse resp = CLIENT.execute(post);
+        post.releaseConnection();
+        assertTrue(resp.getStatusLine().getStatusCode() == 201);
+
+        for (Representation rep : entity.getRepresentations()) {
+            HttpGet get = UTIL.createGetFileContent(rep.getFiles().get(0));
+            resp = CLIENT.execute(get);
+            assertEquals(404, resp.getStatusLine().getStatusCode());
+            get.releaseConnection();
+        }
+    }
+
+    @Test
+    public void testRetrieveEntityRange() throws Exception {
+        IntellectualEntity entity = ModelUtil.createEntity(null);
+        HttpPost post = UTIL.createPostEntity(entity);
+        HttpResponse resp = CLIENT.execute(post);
+        post.releaseConnection();
+        assertTrue(resp.getStatusLine().getStatusCode() == 201);
+
+        HttpGet get = UTIL.createGetEntity(entity.getIdentifier().getValue());
+        resp = CLIENT.execute(get);
+        byte[] xml = IOUtils.toByteArray(resp.getEntity().getContent());
+        String etag = resp.getFirstHeader("ETag").getValue();
+        get.releaseConnection();
+
+        // resume the download after the first 100 bytes
+        get = UTIL.createGetEntity(entity.getIdentifier().getValue());
+        get.setHeader("Range", "bytes=100-");
+        get.setHeader("If-Range", etag);
+        resp = CLIENT.execute(get);
+        assertEquals(206, resp.getStatusLine().getStatusCode());
+        assertEquals("bytes 100-" + (xml.length - 1) + "/" + xml.length, resp.getFirstHeader("Content-Range").getValue());
+        assertArrayEquals(Arrays.copyOfRange(xml, 100, xml.length), IOUtils.toByteArray(resp.getEntity().getContent()));
+        get.releaseConnection();
+    }
+
+    @Test
+    public void testConditionalGetEntity() throws Exception {
+        IntellectualEntity version1 = ModelUtil.createEntity(null);
+        HttpPost post = UTIL.createPostEntity(version1);
+        HttpResponse resp = CLIENT.execute(post);
+        post.releaseConnection();
+        assertTrue(resp.getStatusLine().getStatusCode() == 201);
+
+        HttpGet get = UTIL.createGetEntity(version1.getIdentifier().getValue());
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        String etag = resp.getFirstHeader("ETag").getValue();
+        String lastModified = resp.getFirstHeader("Last-Modified").getValue();
+        get.releaseConnection();
+
+        get = UTIL.createGetEntity(version1.getIdentifier().getValue());
+        get.setHeader("If-None-Match", etag);
+        resp = CLIENT.execute(get);
+        assertEquals(304, resp.getStatusLine().getStatusCode());
+        assertEquals(etag, resp.getFirstHeader("ETag").getValue());
+        get.releaseConnection();
+
+        get = UTIL.createGetEntity(version1.getIdentifier().getValue());
+        get.setHeader("If-Modified-Since", lastModified);
+        resp = CLIENT.execute(get);
+        assertEquals(304, resp.getStatusLine().getStatusCode());
+        get.releaseConnection();
+
+        get = UTIL.createGetVersionList(version1.getIdentifier().getValue());
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        String listEtag = resp.getFirstHeader("ETag").getValue();
+        get.releaseConnection();
+
+        // a new version invalidates the client's copies
+        HttpPut put = UTIL.createPutEntity(new IntellectualEntity.Builder(version1).build());
+        resp = CLIENT.execute(put);
+        put.releaseConnection();
+        assertTrue(resp.getStatusLine().getStatusCode() == 200);
+
+        get = UTIL.createGetEntity(version1.getIdentifier().getValue());
+        get.setHeader("If-None-Match", etag);
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        assertTrue(!etag.equals(resp.getFirstHeader("ETag").getValue()));
+        get.releaseConnection();
+
+        get = UTIL.createGetVersionList(version1.getIdentifier().getValue());
+        get.setHeader("If-None-Match", listEtag);
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        get.releaseConnection();
+    }
+
     @Ignore
     @Test
     public void testRetrieveIntellectualEntityWithRefs() throws Exception {
@@ -402,18 +645,81 @@ public class ConnectorAPIMockTest {
         assertTrue(resp.getStatusLine().getStatusCode() == 201);
 
         // and search for the ingested entity
-        HttpGet get = UTIL.createGetSRUEntity("should");
+        HttpGet get = UTIL.createGetSRUEntity("entity", 1, 1000);
+        resp = CLIENT.execute(get);
+        assertTrue(resp.getStatusLine().getStatusCode() == 200);
+        Document sru = parseXml(resp.getEntity().getContent());
+        get.releaseConnection();
+        List<IntellectualEntity> records = getSRURecords(sru);
+        assertTrue(getSRUNumberOfRecords(sru) >= 1);
+        assertEquals(getSRUNumberOfRecords(sru), records.size());
+        boolean found = false;
+        for (IntellectualEntity searched : records) {
+            found |= searched.getIdentifier().getValue().equals(ie.build().getIdentifier().getValue());
+        }
+        assertTrue("ingested entity not found", found);
+    }
+
+    @Test
+    public void testSearchEntityPaging() throws Exception {
+        // a term only the entities of this test contain, the query parser splits terms at non-letters
+        StringBuilder term = new StringBuilder("paging");
+        for (char c : UUID.randomUUID().toString().replace("-", "").toCharArray()) {
+            term.append((char) ('a' + Character.digit(c, 16)));
+        }
+        for (int i = 0; i < 5; i++) {
+            HttpPost post = UTIL.createPostEntity(new IntellectualEntity.Builder()
+                    .identifier(new Identifier(UUID.randomUUID().toString()))
+                    .descriptive(createDCElementContainer("Paged entity " + term))
+                    .build());
+            HttpResponse resp = CLIENT.execute(post);
+            post.releaseConnection();
+            assertTrue(resp.getStatusLine().getStatusCode() == 201);
+        }
+
+        HttpGet get = UTIL.createGetSRUEntity(term.toString(), 2, 2);
+        HttpResponse resp = CLIENT.execute(get);
+        assertTrue(resp.getStatusLine().getStatusCode() == 200);
+        Document sru = parseXml(resp.getEntity().getContent());
+        get.releaseConnection();
+        assertEquals(5, getSRUNumberOfRecords(sru));
+        assertEquals(2, getSRURecords(sru).size());
+        assertEquals("4", sru.getElementsByTagNameNS(SRW_NS, "nextRecordPosition").item(0).getTextContent());
+
+        // the last page has no next position
+        get = UTIL.createGetSRUEntity(term.toString(), 4, 2);
         resp = CLIENT.execute(get);
         assertTrue(resp.getStatusLine().getStatusCode() == 200);
-        IntellectualEntityCollection resultSet = (IntellectualEntityCollection) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
+        sru = parseXml(resp.getEntity().getContent());
+        get.releaseConnection();
+        assertEquals(2, getSRURecords(sru).size());
+        assertEquals(0, sru.getElementsByTagNameNS(SRW_NS, "nextRecordPosition").getLength());
+    }
+
+    @Test
+    public void testIngestFailure() throws Exception {
+        // a handler failing on the body is answered, not left hanging
+        HttpPost post = new HttpPost("http://localhost:8387/entity");
+        post.setEntity(new ByteArrayEntity("not an entity".getBytes("UTF-8")));
+        HttpResponse resp = CLIENT.execute(post);
+        post.releaseConnection();
+        assertEquals(500, resp.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void testSearchBeyondWindow() throws Exception {
+        HttpGet get = UTIL.createGetSRUEntity("test", 10000, 10);
+        HttpResponse resp = CLIENT.execute(get);
         get.releaseConnection();
-        //assertTrue(resultSet.getEntities().size() == 1);
-        DefaultConverter conv = new DefaultConverter();       
+        assertEquals(400, resp.getStatusLine().getStatusCode());
+    }
 
-       //IntellectualEntity searched = conv.convertMets(resultSet.getEntities().get(0));
-        MetsType mets = (MetsType) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
-        IntellectualEntity searched = conv.convertMets(mets);
-        assertEquals(ie.lifecycleState(new LifecycleState("", State.INGESTED)).build(), searched);
+    @Test
+    public void testSearchMalformedQuery() throws Exception {
+        HttpGet get = UTIL.createGetSRUEntity(URLEncoder.encode("title:(", "UTF-8"), 1, 10);
+        HttpResponse resp = CLIENT.execute(get);
+        get.releaseConnection();
+        assertEquals(400, resp.getStatusLine().getStatusCode());
     }
 
     @Test
@@ -432,15 +738,50 @@ public class ConnectorAPIMockTest {
         HttpGet get = UTIL.createGetSRUrepresentation("testingestrepresentation");
         resp = CLIENT.execute(get);
         assertTrue(resp.getStatusLine().getStatusCode() == 200);
-        IntellectualEntityCollection resultSet = (IntellectualEntityCollection) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
+        Document sru = parseXml(resp.getEntity().getContent());
         get.releaseConnection();
-        assertTrue(resultSet.getEntities().size() == 1);
-        DefaultConverter conv = new DefaultConverter();
-        
-        //IntellectualEntity searched = conv.convertMets(resultSet.getEntities().get(0));
-        MetsType mets = (MetsType) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
-        IntellectualEntity searched = conv.convertMets(mets);
-        assertEquals(ie.lifecycleState(new LifecycleState("", State.INGESTED)).build(), searched);
+        List<IntellectualEntity> records = getSRURecords(sru);
+        assertEquals(1, getSRUNumberOfRecords(sru));
+        assertEquals(1, records.size());
+        assertEquals(ie.build().getIdentifier().getValue(), records.get(0).getIdentifier().getValue());
+    }
+
+    private Document parseXml(InputStream in) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(in);
+    }
+
+    private int getSRUNumberOfRecords(Document sru) {
+        return Integer.parseInt(sru.getElementsByTagNameNS(SRW_NS, "numberOfRecords").item(0).getTextContent());
+    }
+
+    private List<IntellectualEntity> getSRURecords(Document sru) throws Exception {
+        List<Node> records = new ArrayList<Node>();
+        NodeList data = sru.getElementsByTagNameNS(SRW_NS, "recordData");
+        for (int i = 0; i < data.getLength(); i++) {
+            records.add(data.item(i));
+        }
+        List<IntellectualEntity> entities = new ArrayList<IntellectualEntity>();
+        for (Node record : records) {
+            entities.addAll(getEntities(record.getChildNodes()));
+        }
+        return entities;
+    }
+
+    private List<IntellectualEntity> getEntities(NodeList nodes) throws Exception {
+        List<IntellectualEntity> entities = new ArrayList<IntellectualEntity>();
+        ScapeMarshaller marshaller = ScapeMarshaller.newInstance();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            transformer.transform(new DOMSource(nodes.item(i)), new StreamResult(bos));
+            entities.add(marshaller.deserialize(IntellectualEntity.class, new ByteArrayInputStream(bos.toByteArray())));
+        }
+        return entities;
     }
 
     @Test
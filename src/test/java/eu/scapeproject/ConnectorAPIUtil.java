@@ -1,6 +1,7 @@
 package eu.scapeproject;
 
 import java.io.ByteArrayOutputStream;
+import java.util.List;
 
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -16,11 +17,13 @@ public class ConnectorAPIUtil {
     private static final String ENTITY_PATH = "/entity";
     private static final String ENTITY_LIST_PATH = "/entity-list";
     private static final String ENTITY_ASYNC_PATH = "/entity-async";
+    private static final String ENTITY_BULK_PATH = "/entity-bulk";
     private static final String ENTITY_SRU_PATH = "/sru/entities";
     private static final String ENTITY_VERSION_LIST_PATH = "/entity-version-list";
     private static final String REPRESENTATION_PATH = "/representation/";
     private static final String REPRESENTATION_SRU_PATH = "/sru/representations";
     private static final String FILE_PATH = "/file";
+    private static final String FILE_CONTENT_PATH = "/file-content";
     private static final String BITSTREAM_PATH = "/bitstream";
     private static final String METADATA_PATH = "/metadata";
     private static final String LIFECYCLE_STATE_PATH = "/lifecycle";
@@ -47,6 +50,10 @@ public class ConnectorAPIUtil {
         return new HttpGet(mockUrl + FILE_PATH + "/" + next.getIdentifier().getValue());
     }
 
+    public HttpGet createGetFileContent(File next) {
+        return new HttpGet(mockUrl + FILE_CONTENT_PATH + "/" + next.getIdentifier().getValue());
+    }
+
     public HttpGet createGetMetadata(String id) throws Exception {
         return new HttpGet(mockUrl + METADATA_PATH + "/" + id);
     }
@@ -61,6 +68,11 @@ public class ConnectorAPIUtil {
         return new HttpGet(mockUrl + ENTITY_SRU_PATH + "?operation=searchRetrieve&query=" + term + "&recordPacking=xml&recordSchema=entitylist.xsd");
     }
 
+    public HttpGet createGetSRUEntity(String term, int startRecord, int maximumRecords) {
+        return new HttpGet(mockUrl + ENTITY_SRU_PATH + "?operation=searchRetrieve&query=" + term + "&startRecord=" + startRecord
+                + "&maximumRecords=" + maximumRecords + "&recordPacking=xml&recordSchema=entitylist.xsd");
+    }
+
     public HttpGet createGetSRUrepresentation(String term) {
         // TODO Schema for representations
         // TODO: use CQL, not only the term
@@ -85,6 +97,20 @@ public class ConnectorAPIUtil {
         return post;
     }
 
+    public HttpPost createPostEntityBulk(List<IntellectualEntity> entities) throws Exception {
+        HttpPost post = new HttpPost(mockUrl + ENTITY_BULK_PATH);
+        ScapeMarshaller marshaller = ScapeMarshaller.newInstance();
+        StringBuilder body = new StringBuilder("<scape:intellectual-entity-collection xmlns:scape=\"http://scapeproject.eu/model\">");
+        for (IntellectualEntity ie : entities) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            marshaller.serialize(ie, bos);
+            body.append(bos.toString("UTF-8").replaceFirst("^<\\?xml[^>]*\\?>", ""));
+        }
+        body.append("</scape:intellectual-entity-collection>");
+        post.setEntity(new ByteArrayEntity(body.toString().getBytes("UTF-8")));
+        return post;
+    }
+
     public HttpPost createPostEntityAsync(IntellectualEntity ie) throws Exception {
         HttpPost post = new HttpPost(mockUrl + ENTITY_ASYNC_PATH);
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
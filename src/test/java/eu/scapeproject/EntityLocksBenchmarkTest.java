@@ -0,0 +1,102 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the throughput of concurrent read-modify-write cycles on entity
+ * versions guarded by {@link EntityLocks}, for updates of one shared entity,
+ * of one entity per thread, and of one entity per thread behind a single
+ * global lock
+ *
+ */
+public class EntityLocksBenchmarkTest {
+
+    private static final int UPDATES_PER_THREAD = 100;
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+
+    private File dir;
+    private PosixStorage storage;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "scape-locks-" + UUID.randomUUID());
+        MockConfiguration config = new MockConfiguration();
+        // measure the locking, not the disk
+        config.setDurability(MockConfiguration.Durability.NONE);
+        storage = new PosixStorage(dir.getAbsolutePath(), config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void benchmarkUpdates() throws Exception {
+        for (int threads : THREADS) {
+            EntityLocks striped = new EntityLocks(1024);
+            long sameNanos = run(striped, threads, true);
+            long distinctNanos = run(striped, threads, false);
+            long globalNanos = run(new EntityLocks(1), threads, false);
+            int updates = threads * UPDATES_PER_THREAD;
+            Benchmarks.report(getClass(), threads + " threads, same entity: " + Benchmarks.rate(updates, sameNanos)
+                    + " updates/s, distinct entities: " + Benchmarks.rate(updates, distinctNanos)
+                    + " updates/s, distinct entities with a global lock: " + Benchmarks.rate(updates, globalNanos)
+                    + " updates/s, contended acquisitions: " + striped.getContendedCount() + " of " + striped.getAcquiredCount());
+        }
+    }
+
+    private long run(final EntityLocks locks, int threads, boolean sameEntity) throws Exception {
+        final String prefix = UUID.randomUUID().toString();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final String id = sameEntity ? prefix : prefix + "-" + i;
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int j = 0; j < UPDATES_PER_THREAD; j++) {
+                        Lock lock = locks.lock(id);
+                        try {
+                            int version = storage.exists(id, null) ? storage.getNewVersionNumber(id) : 1;
+                            storage.saveXML(("<entity version=\"" + version + "\"/>").getBytes("UTF-8"), id, version, false);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            // a lost race would surface as an exception here
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        if (sameEntity) {
+            assertEquals(threads * UPDATES_PER_THREAD, storage.getVersionList(prefix).size());
+        } else {
+            for (int i = 0; i < threads; i++) {
+                assertEquals(UPDATES_PER_THREAD, storage.getVersionList(prefix + "-" + i).size());
+            }
+        }
+        return elapsed;
+    }
+}
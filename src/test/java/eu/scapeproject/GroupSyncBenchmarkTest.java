@@ -0,0 +1,75 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+/**
+ * Compares the throughput of concurrent writes of new entity versions which
+ * are synced one by one with writes which are synced together in batches by
+ * {@link GroupSync}
+ *
+ */
+public class GroupSyncBenchmarkTest {
+
+    private static final int VERSIONS_PER_THREAD = 50;
+    private static final int[] THREADS = { 1, 4, 16, 32 };
+
+    @Test
+    public void benchmarkDurability() throws Exception {
+        for (int threads : THREADS) {
+            long fsyncNanos = run(MockConfiguration.Durability.FSYNC, threads, false);
+            long groupNanos = run(MockConfiguration.Durability.GROUP, threads, true);
+            int versions = threads * VERSIONS_PER_THREAD;
+            Benchmarks.report(getClass(), threads + " threads, fsync per version: " + Benchmarks.rate(versions, fsyncNanos)
+                    + " versions/s, group sync: " + Benchmarks.rate(versions, groupNanos) + " versions/s");
+        }
+    }
+
+    private long run(MockConfiguration.Durability durability, int threads, boolean report) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "scape-sync-" + UUID.randomUUID());
+        MockConfiguration config = new MockConfiguration();
+        config.setDurability(durability);
+        final PosixStorage storage = new PosixStorage(dir.getAbsolutePath(), config);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                final String id = "entity-" + i;
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int v = 1; v <= VERSIONS_PER_THREAD; v++) {
+                            storage.saveXML(("<entity version=\"" + v + "\"/>").getBytes("UTF-8"), id, v, false);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (report) {
+                assertEquals(threads * VERSIONS_PER_THREAD, storage.getGroupSyncedCount());
+                Benchmarks.report(getClass(), threads + " threads, " + storage.getSyncBatchCount() + " batches, largest batch: "
+                        + storage.getLargestSyncBatch() + ", avg. " + storage.getAverageSyncBatchMicros() + " us per batch");
+            }
+            return elapsed;
+        } finally {
+            executor.shutdown();
+            storage.close();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdRegistryTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "scape-registry-" + UUID.randomUUID());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        IdRegistry registry = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.FSYNC);
+        for (int i = 0; i < 2000; i++) {
+            registry.put(IdRegistry.Type.FILE, "file-" + i, "entity-" + i);
+        }
+        registry.put(IdRegistry.Type.FILE, "file-0", "entity-new");
+        registry.close();
+
+        registry = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.FSYNC);
+        try {
+            assertEquals(2000, registry.size());
+            assertEquals("entity-new", registry.get(IdRegistry.Type.FILE, "file-0"));
+            assertEquals("entity-1999", registry.get(IdRegistry.Type.FILE, "file-1999"));
+            assertNull(registry.get(IdRegistry.Type.BITSTREAM, "file-1"));
+        } finally {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void testDamagedRecordLength() throws Exception {
+        IdRegistry registry = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.NONE);
+        registry.put(IdRegistry.Type.FILE, "file-1", "entity-1");
+        registry.close();
+        File log = new File(dir, "ids.log");
+        long intact = log.length();
+
+        // a record whose length field claims far more bytes than the log holds
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        try {
+            raf.seek(intact);
+            raf.writeInt(Integer.MAX_VALUE);
+            raf.writeByte(IdRegistry.Type.FILE.ordinal());
+        } finally {
+            raf.close();
+        }
+        new File(dir, "ids.idx").delete();
+
+        registry = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.NONE);
+        try {
+            assertEquals(1, registry.size());
+            assertEquals("entity-1", registry.get(IdRegistry.Type.FILE, "file-1"));
+            assertEquals(intact, log.length());
+        } finally {
+            registry.close();
+        }
+    }
+
+    @Test
+    public void testAppendAndReplayAfterCrash() throws Exception {
+        IdRegistry registry = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.FSYNC);
+        registry.put(IdRegistry.Type.FILE, "file-1", "entity-1");
+        registry.close();
+        File index = new File(dir, "ids.idx");
+        byte[] checkpointed = FileUtils.readFileToByteArray(index);
+
+        registry = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.FSYNC);
+        for (int i = 2; i <= 100; i++) {
+            registry.append(IdRegistry.Type.FILE, "file-" + i, "entity-" + i);
+        }
+        registry.append(IdRegistry.Type.FILE, "file-1", "entity-new");
+        registry.sync();
+        // a crash before the next checkpoint, the appended slots never made it to disk
+        FileUtils.writeByteArrayToFile(index, checkpointed);
+
+        IdRegistry recovered = new IdRegistry(dir.getAbsolutePath(), MockConfiguration.Durability.FSYNC);
+        try {
+            assertEquals(100, recovered.size());
+            assertEquals("entity-new", recovered.get(IdRegistry.Type.FILE, "file-1"));
+            assertEquals("entity-100", recovered.get(IdRegistry.Type.FILE, "file-100"));
+        } finally {
+            recovered.close();
+            registry.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import eu.scapeproject.model.IntellectualEntity;
+
+/**
+ * Compares committing every document and opening a reader per query with the
+ * batched commits and shared searchers of {@link LuceneIndex}
+ *
+ */
+public class LuceneIndexBenchmarkTest {
+
+    private static final int DOCS = 2000;
+    private static final int QUERIES = 200;
+
+    @Test
+    public void benchmarkIngestAndSearch() throws Exception {
+        List<IntellectualEntity> entities = new ArrayList<IntellectualEntity>();
+        for (int i = 0; i < DOCS; i++) {
+            entities.add(ModelUtil.createEntity(null));
+        }
+
+        // baseline: commit per document and a fresh reader per query
+        Directory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+        long start = System.nanoTime();
+        for (IntellectualEntity entity : entities) {
+            Document doc = new Document();
+            doc.add(new Field("id", entity.getIdentifier().getValue(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("title", "A test entity", Field.Store.YES, Field.Index.ANALYZED));
+            writer.addDocument(doc);
+            writer.commit();
+        }
+        long baselineIngest = System.nanoTime() - start;
+        Query query = new QueryParser(Version.LUCENE_36, "title", new SimpleAnalyzer(Version.LUCENE_36)).parse("test");
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            IndexReader reader = IndexReader.open(dir);
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.search(query, 10);
+            searcher.close();
+            reader.close();
+        }
+        long baselineSearch = System.nanoTime() - start;
+        writer.close();
+        dir.close();
+
+        LuceneIndex index = new LuceneIndex();
+        start = System.nanoTime();
+        for (IntellectualEntity entity : entities) {
+            index.addEntity(entity);
+        }
+        long ingest = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            assertEquals(10, index.searchEntity("test").size());
+        }
+        long search = System.nanoTime() - start;
+        index.close();
+
+        Benchmarks.report(getClass(), "ingest commit per doc: " + Benchmarks.rate(DOCS, baselineIngest) + " docs/s, batched: "
+                + Benchmarks.rate(DOCS, ingest) + " docs/s");
+        Benchmarks.report(getClass(), "search reader per query: " + Benchmarks.rate(QUERIES, baselineSearch)
+                + " queries/s, shared searcher: " + Benchmarks.rate(QUERIES, search) + " queries/s");
+    }
+}
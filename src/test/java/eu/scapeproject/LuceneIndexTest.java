@@ -0,0 +1,79 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LuceneIndexTest {
+
+    private File dir;
+    private MockConfiguration config;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "scape-index-" + UUID.randomUUID());
+        config = new MockConfiguration();
+        config.setIndexBackend(MockConfiguration.IndexBackend.MMAP);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testStaleMarker() throws Exception {
+        LuceneIndex index = new LuceneIndex(dir.getAbsolutePath(), config);
+        assertFalse(index.isStale());
+        index.addEntity("entity-1", Arrays.asList("A test entity"), Collections.<String> emptyList());
+        index.close();
+
+        // a cleanly closed index is up to date
+        index = new LuceneIndex(dir.getAbsolutePath(), config);
+        assertFalse(index.isStale());
+        assertEquals(1, index.getEntityCount());
+        index.close();
+
+        // the marker of an index which hasn't been closed is left behind
+        FileUtils.touch(new File(dir, "dirty"));
+        index = new LuceneIndex(dir.getAbsolutePath(), config);
+        try {
+            assertTrue(index.isStale());
+        } finally {
+            index.close();
+        }
+        assertFalse(new File(dir, "dirty").exists());
+    }
+
+    @Test
+    public void testRepresentationsGroupedByEntity() throws Exception {
+        LuceneIndex index = new LuceneIndex();
+        try {
+            index.addRepresentation("entity-1", "rep-1", "grouped scan");
+            index.addRepresentation("entity-1", "rep-2", "grouped scan grouped");
+            index.addRepresentation("entity-2", "rep-3", "grouped photo");
+            index.addRepresentation("entity-3", "rep-4", "unrelated");
+
+            LuceneIndex.SearchResult result = index.searchRepresentation("grouped", 0, 10);
+            assertEquals(2, result.getTotalHits());
+            assertEquals(Arrays.asList("entity-1", "entity-2"), result.getIds());
+
+            // a page counts entities, not representations
+            result = index.searchRepresentation("grouped", 1, 10);
+            assertEquals(2, result.getTotalHits());
+            assertEquals(Arrays.asList("entity-2"), result.getIds());
+        } finally {
+            index.close();
+        }
+    }
+}
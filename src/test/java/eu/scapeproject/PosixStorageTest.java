@@ -0,0 +1,264 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PosixStorageTest {
+
+    private java.io.File dir;
+    private PosixStorage storage;
+    /** storages opened by a test in addition to the default one */
+    private final List<PosixStorage> opened = new ArrayList<PosixStorage>();
+
+    @Before
+    public void setup() throws Exception {
+        dir = new java.io.File(System.getProperty("java.io.tmpdir"), "scape-storage-" + UUID.randomUUID());
+        storage = new PosixStorage(dir.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PosixStorage s : opened) {
+            s.close();
+        }
+        storage.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private PosixStorage open(java.io.File directory, MockConfiguration config) {
+        PosixStorage s = new PosixStorage(directory.getAbsolutePath(), config);
+        opened.add(s);
+        return s;
+    }
+
+    @Test
+    public void testDatastreamDeduplication() throws Exception {
+        byte[] content = "identical content".getBytes("UTF-8");
+        String first = storage.saveDatastream(new ByteArrayInputStream(content));
+        String second = storage.saveDatastream(new ByteArrayInputStream(content));
+        assertEquals(first, second);
+        assertEquals(1, storage.getDeduplicatedCount());
+        // the SHA-256 digest of the content is its address
+        assertEquals("15bbe85aac4518db7da507997bd8b9baa07ddea5d0a08d098f85f1bf08c02521", first);
+
+        FileChannel channel = storage.openDatastream(first);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(content.length);
+            channel.read(buf);
+            assertEquals("identical content", new String(buf.array(), "UTF-8"));
+        } finally {
+            channel.close();
+        }
+        // the temporary upload files are gone
+        assertEquals(0, new java.io.File(dir, "tmp").list().length);
+    }
+
+    @Test
+    public void testDeltaVersions() throws Exception {
+        MockConfiguration config = new MockConfiguration();
+        config.setDeltaVersions(true);
+        config.setSnapshotInterval(3);
+        PosixStorage deltas = open(new java.io.File(dir, "deltas"), config);
+        List<byte[]> versions = new ArrayList<byte[]>();
+        StringBuilder doc = new StringBuilder("<entity>");
+        for (int i = 0; i < 200; i++) {
+            doc.append("<representation id=\"").append(i).append("\">unchanged content</representation>");
+        }
+        doc.append("</entity>");
+        for (int v = 1; v <= 5; v++) {
+            byte[] xml = doc.toString().replace("id=\"" + v + "\"", "id=\"changed-" + v + "\"").getBytes("UTF-8");
+            versions.add(xml);
+            deltas.saveXML(xml, "entity", v, false);
+        }
+        for (int v = 1; v <= 5; v++) {
+            assertArrayEquals(versions.get(v - 1), deltas.getXML("entity", v));
+        }
+        java.io.File entityDir = new ShardLayout(2, 2).getEntityDir(new java.io.File(new java.io.File(dir, "deltas"), "foxml"), "entity");
+        assertTrue(new java.io.File(entityDir, "version-1.delta").exists());
+        assertTrue(new java.io.File(entityDir, "version-2.delta").exists());
+        // every third version is a snapshot and the latest is always stored in full
+        assertTrue(new java.io.File(entityDir, "version-3.xml").exists());
+        assertTrue(new java.io.File(entityDir, "version-4.delta").exists());
+        assertTrue(new java.io.File(entityDir, "version-5.xml").exists());
+        assertNull(deltas.openXML("entity", 1));
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), deltas.getVersionList("entity"));
+        assertTrue(deltas.getDeltaBytesSaved() > 0);
+        assertEquals(3, deltas.getReconstructionCount());
+    }
+
+    @Test
+    public void testDeltaCodec() throws Exception {
+        byte[] base = "<mets><file ID=\"a\">first file</file><file ID=\"b\">second file</file></mets>".getBytes("UTF-8");
+        byte[] target = "<mets><file ID=\"a\">first file</file><file ID=\"c\">third file</file><file ID=\"b\">second file</file></mets>".getBytes("UTF-8");
+        assertArrayEquals(target, DeltaCodec.decode(base, DeltaCodec.encode(base, target)));
+        assertArrayEquals(base, DeltaCodec.decode(target, DeltaCodec.encode(target, base)));
+        assertArrayEquals(new byte[0], DeltaCodec.decode(base, DeltaCodec.encode(base, new byte[0])));
+    }
+
+    @Test
+    public void testCompressedVersions() throws Exception {
+        MockConfiguration config = new MockConfiguration();
+        config.setCompressXML(true);
+        config.setDeltaVersions(true);
+        PosixStorage compressed = open(new java.io.File(dir, "gzip"), config);
+        byte[] first = "<entity><title>first version</title></entity>".getBytes("UTF-8");
+        byte[] second = "<entity><title>second version</title></entity>".getBytes("UTF-8");
+        compressed.saveXML(first, "entity", 1, false);
+        compressed.saveXML(second, "entity", 2, false);
+        assertArrayEquals(first, compressed.getXML("entity", 1));
+        assertArrayEquals(second, compressed.getXML("entity", 2));
+        assertArrayEquals(second, IOUtils.toByteArray(compressed.readXML("entity", null)));
+        assertNull(compressed.openXML("entity", 2));
+
+        // the stored bytes are a gzip stream which can be passed to clients as is
+        FileChannel channel = compressed.openCompressedXML("entity", 2);
+        try {
+            assertArrayEquals(second, IOUtils.toByteArray(new GZIPInputStream(Channels.newInputStream(channel))));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void testMigrateFlatLayout() throws Exception {
+        MockConfiguration flat = new MockConfiguration();
+        flat.setShardLevels(0);
+        flat.setShardWidth(0);
+        java.io.File storageDir = new java.io.File(dir, "migration");
+        PosixStorage storage = open(storageDir, flat);
+        for (int i = 0; i < 20; i++) {
+            storage.saveXML(("<entity>" + i + "</entity>").getBytes("UTF-8"), "entity-" + i, 1, false);
+        }
+        assertTrue(new java.io.File(new java.io.File(storageDir, "foxml"), "entity-0").isDirectory());
+        // storages are migrated while they are not in use
+        storage.close();
+
+        StorageMigration.migrate(storageDir, new ShardLayout(2, 2));
+        PosixStorage migrated = open(storageDir, new MockConfiguration());
+        assertEquals(20, migrated.getEntityIds().size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("<entity>" + i + "</entity>", new String(migrated.getXML("entity-" + i), "UTF-8"));
+        }
+        // the entities are no direct children of the storage directory anymore
+        assertTrue(!new java.io.File(new java.io.File(storageDir, "foxml"), "entity-0").exists());
+        assertTrue(new ShardLayout(2, 2).getEntityDir(new java.io.File(storageDir, "foxml"), "entity-0").isDirectory());
+        assertTrue(!new java.io.File(storageDir, "foxml.migrating").exists());
+    }
+
+    @Test
+    public void testReadDoesNotCreateDirectories() throws Exception {
+        java.io.File foxml = new java.io.File(dir, "foxml");
+        int before = FileUtils.listFilesAndDirs(foxml, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size();
+        assertTrue(!storage.exists("unknown", null));
+        try {
+            storage.getXML("unknown", 1);
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        assertEquals(before, FileUtils.listFilesAndDirs(foxml, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+    }
+
+    @Test
+    public void testGroupSync() throws Exception {
+        final int threads = 8;
+        final int versions = 25;
+        MockConfiguration config = new MockConfiguration();
+        config.setDurability(MockConfiguration.Durability.GROUP);
+        final PosixStorage group = open(dir, config);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final String id = "entity-" + t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int v = 1; v <= versions; v++) {
+                            group.saveXML(("<entity>" + id + " " + v + "</entity>").getBytes("UTF-8"), id, v, false);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+            for (int t = 0; t < threads; t++) {
+                assertEquals("<entity>entity-" + t + " 25</entity>", new String(group.getXML("entity-" + t), "UTF-8"));
+            }
+            assertEquals(threads * versions, group.getGroupSyncedCount());
+            assertTrue(group.getSyncBatchCount() <= group.getGroupSyncedCount());
+            assertTrue(group.getLargestSyncBatch() <= threads);
+            assertEquals(0, new java.io.File(dir, "tmp").list().length);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDurabilityForces() throws Exception {
+        for (MockConfiguration.Durability durability : MockConfiguration.Durability.values()) {
+            MockConfiguration config = new MockConfiguration();
+            config.setDurability(durability);
+            PosixStorage s = open(new java.io.File(dir, durability.name()), config);
+            s.saveXML("<entity>first</entity>".getBytes("UTF-8"), "entity", 1, false);
+            s.saveXML("<entity>second</entity>".getBytes("UTF-8"), "entity", 2, false);
+            s.saveDatastream(new ByteArrayInputStream("content".getBytes("UTF-8")));
+            // every write is forced before it is moved in place, unless durability is disabled
+            assertEquals(durability == MockConfiguration.Durability.NONE ? 0 : 3, s.getForcedCount());
+            assertEquals(durability == MockConfiguration.Durability.GROUP ? 3 : 0, s.getGroupSyncedCount());
+        }
+    }
+
+    @Test
+    public void testOverwriteAndCrashLeftovers() throws Exception {
+        MockConfiguration config = new MockConfiguration();
+        config.setDurability(MockConfiguration.Durability.FSYNC);
+        PosixStorage fsync = open(dir, config);
+        fsync.saveXML("<entity>first</entity>".getBytes("UTF-8"), "entity", 1, false);
+        fsync.saveXML("<entity>second</entity>".getBytes("UTF-8"), "entity", 1, true);
+        assertEquals("<entity>second</entity>", new String(fsync.getXML("entity", 1), "UTF-8"));
+
+        // a write interrupted by a crash never reached the entity directory and is cleaned up on restart
+        FileUtils.writeStringToFile(new java.io.File(new java.io.File(dir, "tmp"), "ingest-1.xml"), "<entity>trunc");
+        PosixStorage restarted = open(dir, config);
+        assertEquals(0, new java.io.File(dir, "tmp").list().length);
+        assertEquals(Arrays.asList("1"), restarted.getVersionList("entity"));
+    }
+
+    @Test
+    public void testForceDirectory() throws Exception {
+        // directories have to be opened differently from files to sync them
+        GroupSync.forceDirectory(dir);
+        MockConfiguration config = new MockConfiguration();
+        config.setDurability(MockConfiguration.Durability.FSYNC);
+        PosixStorage fsync = open(new java.io.File(dir, "fsync"), config);
+        String hash = fsync.saveDatastream(new ByteArrayInputStream("durable content".getBytes("UTF-8")));
+        fsync.saveXML("<entity/>".getBytes("UTF-8"), "entity", 1, false);
+        assertEquals("durable content", IOUtils.toString(Channels.newInputStream(fsync.openDatastream(hash)), "UTF-8"));
+        assertEquals(Arrays.asList("1"), fsync.getVersionList("entity"));
+    }
+}
@@ -0,0 +1,69 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RequestDispatcherTest {
+
+    private static Runnable blocking(final CountDownLatch started, final CountDownLatch release, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testLimitsAndBackPressure() throws Exception {
+        RequestDispatcher<String> dispatcher = new RequestDispatcher<String>(2, 1, Executors.defaultThreadFactory())
+                .limit(1, "search");
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+
+        assertTrue(dispatcher.execute("search", blocking(started, release, done)));
+        // the search limit is reached while a worker is still idle
+        assertFalse(dispatcher.execute("search", blocking(started, release, done)));
+        assertTrue(dispatcher.execute("lifecycle", blocking(started, release, done)));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // both workers are busy, one request fits into the queue
+        assertTrue(dispatcher.execute("lifecycle", blocking(new CountDownLatch(1), release, done)));
+        assertEquals(1, dispatcher.getQueueDepth());
+        assertFalse(dispatcher.execute("lifecycle", blocking(new CountDownLatch(1), release, done)));
+        assertEquals(2, dispatcher.getRejectedCount());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // the search permit is returned once the request is finished
+        CountDownLatch finished = new CountDownLatch(1);
+        assertTrue(dispatcher.execute("search", blocking(new CountDownLatch(1), release, finished)));
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        dispatcher.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testInline() throws Exception {
+        RequestDispatcher<String> dispatcher = new RequestDispatcher<String>(0, 0, Executors.defaultThreadFactory());
+        final Thread caller = Thread.currentThread();
+        final boolean[] inline = new boolean[1];
+        assertTrue(dispatcher.execute("entity", new Runnable() {
+            public void run() {
+                inline[0] = Thread.currentThread() == caller;
+            }
+        }));
+        assertTrue(inline[0]);
+    }
+}
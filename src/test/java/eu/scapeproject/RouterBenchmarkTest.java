@@ -0,0 +1,97 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Compares the dispatch cost of {@link Router} with a chain of startsWith
+ * checks followed by a regex match for the version, the way requests were
+ * dispatched before
+ *
+ */
+public class RouterBenchmarkTest {
+
+    private static final int ROUNDS = 200000;
+
+    private static final String[] PREFIXES = { "/entity/", "/metadata/", "/representation/", "/entity-version-list/",
+            "/sru/entities", "/sru/representations", "/file/", "/file-content/", "/bitstream/", "/lifecycle/" };
+
+    private final Router<String> router = new Router<String>()
+            .add("GET", "/entity/{id}", "entity")
+            .add("GET", "/entity/{version}/{id}", "entity")
+            .add("GET", "/metadata/{id}", "metadata")
+            .add("GET", "/representation/{id}", "representation")
+            .add("GET", "/representation/{version}/{id}", "representation")
+            .add("GET", "/entity-version-list/{id}", "version-list")
+            .add("GET", "/sru/entities", "entity-sru")
+            .add("GET", "/sru/representations", "representation-sru")
+            .add("GET", "/file/{id}", "file")
+            .add("GET", "/file/{version}/{id}", "file")
+            .add("GET", "/file-content/{id}", "file-content")
+            .add("GET", "/bitstream/{id}", "bitstream")
+            .add("GET", "/lifecycle/{id}", "lifecycle")
+            .add("GET", "/lifecycle/{version}/{id}", "lifecycle")
+            .add("POST", "/entity", "ingest")
+            .add("PUT", "/entity/{id}", "update");
+
+    @Test
+    public void benchmarkDispatch() throws Exception {
+        String[] paths = new String[PREFIXES.length * 2];
+        for (int i = 0; i < PREFIXES.length; i++) {
+            // the SRU endpoints take no path parameters
+            boolean parameters = PREFIXES[i].endsWith("/");
+            paths[2 * i] = parameters ? PREFIXES[i] + UUID.randomUUID() : PREFIXES[i];
+            paths[2 * i + 1] = parameters ? PREFIXES[i] + "2/" + UUID.randomUUID() : PREFIXES[i];
+        }
+        // warm up both code paths
+        dispatchChain(paths, ROUNDS / 10);
+        dispatchRouter(paths, ROUNDS / 10);
+        long chainNanos = dispatchChain(paths, ROUNDS);
+        long routerNanos = dispatchRouter(paths, ROUNDS);
+        Benchmarks.report(getClass(), "startsWith chain: " + Benchmarks.latency(ROUNDS, chainNanos) + " ns/request, router: "
+                + Benchmarks.latency(ROUNDS, routerNanos) + " ns/request");
+    }
+
+    private long dispatchRouter(String[] paths, int rounds) {
+        int matched = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            Router.Match<String> match = router.find("GET", paths[i % paths.length]);
+            if (match != null) {
+                matched++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        // keeps the lookups from being optimized away
+        assertTrue(matched > 0);
+        return elapsed;
+    }
+
+    private long dispatchChain(String[] paths, int rounds) {
+        int matched = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            String path = paths[i % paths.length];
+            for (String prefix : PREFIXES) {
+                if (path.startsWith(prefix)) {
+                    Matcher m = Pattern.compile("/\\d*/").matcher(path);
+                    Integer version = m.find() ? Integer.valueOf(path.substring(m.start() + 1, m.end() - 1)) : null;
+                    String id = path.substring(path.lastIndexOf('/') + 1);
+                    if (id.length() > 0 && (version == null || version > 0)) {
+                        matched++;
+                    }
+                    break;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        // keeps the lookups from being optimized away
+        assertTrue(matched > 0);
+        return elapsed;
+    }
+}
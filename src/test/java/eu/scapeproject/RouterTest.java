@@ -0,0 +1,51 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class RouterTest {
+
+    private final Router<String> router = new Router<String>()
+            .add("GET", "/entity/{id}", "entity")
+            .add("GET", "/entity/{version}/{id}", "entity")
+            .add("GET", "/representation/{id}", "representation")
+            .add("GET", "/sru/entities", "entity-sru")
+            .add("GET", "/file-content/{id}", "file-content")
+            .add("POST", "/entity", "ingest")
+            .add("PUT", "/entity/{id}", "update");
+
+    @Test
+    public void testRoutes() throws Exception {
+        Router.Match<String> match = router.find("GET", "/entity/abc");
+        assertEquals("entity", match.getTarget());
+        assertEquals("abc", match.getId());
+        assertNull(match.getVersion());
+
+        match = router.find("GET", "/entity/3/abc");
+        assertEquals("entity", match.getTarget());
+        assertEquals("abc", match.getId());
+        assertEquals(Integer.valueOf(3), match.getVersion());
+
+        // a numeric id is no version
+        match = router.find("GET", "/entity/42");
+        assertEquals("42", match.getId());
+        assertNull(match.getVersion());
+
+        // empty segments are skipped
+        match = router.find("GET", "/representation//rep-1");
+        assertEquals("representation", match.getTarget());
+        assertEquals("rep-1", match.getId());
+
+        assertEquals("file-content", router.find("GET", "/file-content/f").getTarget());
+        assertEquals("entity-sru", router.find("GET", "/sru/entities").getTarget());
+        assertEquals("ingest", router.find("POST", "/entity").getTarget());
+        assertEquals("update", router.find("PUT", "/entity/abc").getTarget());
+        assertNull(router.find("POST", "/entity/abc"));
+        assertNull(router.find("GET", "/entity"));
+        assertNull(router.find("GET", "/entity/1/2/3"));
+        assertNull(router.find("GET", "/unknown/abc"));
+        assertNull(router.find("DELETE", "/entity/abc"));
+    }
+}
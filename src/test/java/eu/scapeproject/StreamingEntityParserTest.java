@@ -0,0 +1,175 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.scapeproject.model.File;
+import eu.scapeproject.model.Identifier;
+import eu.scapeproject.model.IntellectualEntity;
+import eu.scapeproject.model.LifecycleState;
+import eu.scapeproject.model.Representation;
+import eu.scapeproject.util.ScapeMarshaller;
+
+public class StreamingEntityParserTest {
+
+    private java.io.File dir;
+    private IdRegistry registry;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new java.io.File(System.getProperty("java.io.tmpdir"), "scape-parser-" + UUID.randomUUID());
+        registry = new IdRegistry(dir.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testParseEntity() throws Exception {
+        File file = new File.Builder()
+                .identifier(new Identifier(UUID.randomUUID().toString()))
+                .uri(URI.create("http://example.com/streamed-file"))
+                .build();
+        Representation rep = new Representation.Builder(new Identifier(UUID.randomUUID().toString()))
+                .title("streamed representation")
+                .files(Arrays.asList(file))
+                .build();
+        IntellectualEntity entity = ModelUtil.createEntity(Arrays.asList(rep));
+        ByteArrayOutputStream posted = new ByteArrayOutputStream();
+        ScapeMarshaller marshaller = ScapeMarshaller.newInstance();
+        marshaller.serialize(entity, posted);
+
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        StreamingEntityParser.Result result = new StreamingEntityParser().parse(
+                new ByteArrayInputStream(posted.toByteArray()), stored);
+        String entityId = entity.getIdentifier().getValue();
+        assertEquals(entityId, result.getEntityId());
+        assertTrue(result.getTitles().contains("A test entity"));
+        // nothing is registered until the caller has stored the entity
+        assertNull(registry.get(IdRegistry.Type.FILE, file.getIdentifier().getValue()));
+        result.register(registry);
+        assertEquals(entityId, registry.get(IdRegistry.Type.FILE, file.getIdentifier().getValue()));
+        assertEquals("http://example.com/streamed-file", result.getFileLocations().get(file.getIdentifier().getValue()));
+
+        // the stored copy is still a valid entity
+        IntellectualEntity copy = marshaller.deserialize(IntellectualEntity.class, new ByteArrayInputStream(stored.toByteArray()));
+        assertEquals(entityId, copy.getIdentifier().getValue());
+        assertEquals(file.getIdentifier().getValue(), copy.getRepresentations().get(0).getFiles().get(0).getIdentifier().getValue());
+    }
+
+    @Test
+    public void testRepresentationTitles() throws Exception {
+        String mets = "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\" OBJID=\"entity-1\">"
+                + "<mets:dmdSec ID=\"dmd-entity\"><dc:title>entity title</dc:title></mets:dmdSec>"
+                + "<mets:dmdSec ID=\"dmd-rep-1\"><dc:title>first representation</dc:title></mets:dmdSec>"
+                + "<mets:dmdSec ID=\"dmd-rep-2\"><dc:title>second representation</dc:title></mets:dmdSec>"
+                + "<mets:fileSec>"
+                + "<mets:fileGrp ID=\"rep-1\" DMDID=\"dmd-rep-1\"><mets:file ID=\"file-1\"/></mets:fileGrp>"
+                + "<mets:fileGrp ID=\"rep-2\"><mets:file ID=\"file-2\"/></mets:fileGrp>"
+                + "<mets:fileGrp ID=\"rep-3\"><mets:file ID=\"file-3\"/></mets:fileGrp>"
+                + "</mets:fileSec>"
+                + "<mets:structMap><mets:div DMDID=\"dmd-entity\">"
+                + "<mets:div DMDID=\"dmd-rep-2\"><mets:fptr FILEID=\"file-2\"/></mets:div>"
+                + "<mets:div><mets:fptr FILEID=\"file-3\"/></mets:div>"
+                + "</mets:div></mets:structMap></mets:mets>";
+        StreamingEntityParser.Result result = new StreamingEntityParser().parse(
+                new ByteArrayInputStream(mets.getBytes("UTF-8")), new ByteArrayOutputStream());
+        assertEquals("first representation", result.getRepresentationTitles().get("rep-1"));
+        assertEquals("second representation", result.getRepresentationTitles().get("rep-2"));
+        assertNull(result.getRepresentationTitles().get("rep-3"));
+        // titles of the representations aren't the entity's
+        assertEquals(Arrays.asList("entity title"), result.getTitles());
+    }
+
+    @Test
+    public void testAssignEntityId() throws Exception {
+        IntellectualEntity entity = new IntellectualEntity.Builder()
+                .descriptive(ModelUtil.createDCMetadata())
+                .build();
+        ByteArrayOutputStream posted = new ByteArrayOutputStream();
+        ScapeMarshaller marshaller = ScapeMarshaller.newInstance();
+        marshaller.serialize(entity, posted);
+
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        StreamingEntityParser.Result result = new StreamingEntityParser().parse(
+                new ByteArrayInputStream(posted.toByteArray()), stored);
+        assertNotNull(result.getEntityId());
+        IntellectualEntity copy = marshaller.deserialize(IntellectualEntity.class, new ByteArrayInputStream(stored.toByteArray()));
+        assertEquals(result.getEntityId(), copy.getIdentifier().getValue());
+    }
+
+    @Test
+    public void testStreamingIngest() throws Exception {
+        java.io.File contentDir = new java.io.File(dir, "content");
+        contentDir.mkdirs();
+        java.io.File content = new java.io.File(contentDir, "streamed.txt");
+        FileUtils.writeStringToFile(content, "streamed content");
+        MockConfiguration config = new MockConfiguration();
+        config.setStreamingIngest(true);
+        config.setDatastreamSchemes("file");
+        config.setDatastreamBaseDirectory(contentDir.getAbsolutePath());
+        ConnectorAPIMock mock = new ConnectorAPIMock(8389, config);
+        Thread t = new Thread(mock);
+        t.start();
+        while (!mock.isRunning()) {
+            Thread.sleep(10);
+        }
+        try {
+            File file = new File.Builder()
+                    .identifier(new Identifier(UUID.randomUUID().toString()))
+                    .uri(content.toURI())
+                    .build();
+            Representation rep = new Representation.Builder(new Identifier(UUID.randomUUID().toString()))
+                    .files(Arrays.asList(file))
+                    .build();
+            // the posted state is stored as is but not reported
+            IntellectualEntity entity = new IntellectualEntity.Builder(ModelUtil.createEntity(Arrays.asList(rep)))
+                    .lifecycleState(new LifecycleState("posted", LifecycleState.State.INGESTING))
+                    .build();
+            ConnectorAPIUtil util = new ConnectorAPIUtil("http://localhost:8389");
+            HttpClient client = new DefaultHttpClient();
+            HttpPost post = util.createPostEntity(entity);
+            HttpResponse resp = client.execute(post);
+            assertEquals(201, resp.getStatusLine().getStatusCode());
+            post.releaseConnection();
+
+            HttpGet get = util.createGetFileContent(file);
+            resp = client.execute(get);
+            assertEquals(200, resp.getStatusLine().getStatusCode());
+            assertEquals("streamed content", IOUtils.toString(resp.getEntity().getContent()));
+            get.releaseConnection();
+
+            get = util.createGetEntityLifecycleState(entity.getIdentifier().getValue());
+            resp = client.execute(get);
+            assertEquals(200, resp.getStatusLine().getStatusCode());
+            LifecycleState state = (LifecycleState) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
+            assertEquals(LifecycleState.State.INGESTED, state.getState());
+            get.releaseConnection();
+        } finally {
+            mock.stop();
+            mock.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package eu.scapeproject;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+import eu.scapeproject.model.IntellectualEntity;
+import eu.scapeproject.util.ScapeMarshaller;
+
+/**
+ * Compares the (de)serialization throughput of one marshaller shared by all
+ * threads with the per thread marshallers of {@link ThreadLocalMarshaller}
+ *
+ */
+public class ThreadLocalMarshallerBenchmarkTest {
+
+    private static final int ROUNDS_PER_THREAD = 200;
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final int MAX_THREADS = 8;
+
+    private interface Codec {
+        IntellectualEntity roundTrip(IntellectualEntity entity) throws Exception;
+    }
+
+    @Test
+    public void benchmarkRoundTrips() throws Exception {
+        final IntellectualEntity entity = ModelUtil.createEntity(null);
+        final ScapeMarshaller shared = ScapeMarshaller.newInstance();
+        final ThreadLocalMarshaller local = new ThreadLocalMarshaller();
+        Codec sharedCodec = new Codec() {
+            public IntellectualEntity roundTrip(IntellectualEntity e) throws Exception {
+                // the shared instance isn't thread safe, so the calls have to be serialized
+                synchronized (shared) {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    shared.serialize(e, bos);
+                    return shared.deserialize(IntellectualEntity.class, new ByteArrayInputStream(bos.toByteArray()));
+                }
+            }
+        };
+        Codec localCodec = new Codec() {
+            public IntellectualEntity roundTrip(IntellectualEntity e) throws Exception {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                local.serialize(e, bos);
+                return local.deserialize(IntellectualEntity.class, new ByteArrayInputStream(bos.toByteArray()));
+            }
+        };
+        // one pool for all runs, so the thread local marshallers are created
+        // during the warm up and not within the measured runs
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(MAX_THREADS);
+        executor.prestartAllCoreThreads();
+        try {
+            // warm up both code paths on every pool thread
+            run(executor, sharedCodec, entity, MAX_THREADS);
+            run(executor, localCodec, entity, MAX_THREADS);
+            for (int threads : THREADS) {
+                long sharedNanos = run(executor, sharedCodec, entity, threads);
+                long localNanos = run(executor, localCodec, entity, threads);
+                int rounds = threads * ROUNDS_PER_THREAD;
+                Benchmarks.report(getClass(), threads + " threads, shared marshaller: " + Benchmarks.rate(rounds, sharedNanos)
+                        + " round trips/s, thread local marshallers: " + Benchmarks.rate(rounds, localNanos) + " round trips/s");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long run(ExecutorService executor, final Codec codec, final IntellectualEntity entity, int threads)
+            throws Exception {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int count = 0;
+                    for (int j = 0; j < ROUNDS_PER_THREAD; j++) {
+                        if (codec.roundTrip(entity).getIdentifier().getValue().equals(entity.getIdentifier().getValue())) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+            }));
+        }
+        for (Future<Integer> result : results) {
+            assertEquals(ROUNDS_PER_THREAD, result.get().intValue());
+        }
+        return System.nanoTime() - start;
+    }
+}